@@ -12,8 +12,10 @@ import javaclient2.PlayerClient;
 import javaclient2.Position2DInterface;
 import javaclient2.SonarInterface;
 import javaclient2.structures.PlayerConstants;
+import localization.LikelihoodField;
 import localization.Localizer;
 import localization.Mapper;
+import localization.Refiner;
 import navigation.PotentialField;
 import planning.Planner;
 import ui.MapViewer;
@@ -30,7 +32,6 @@ import common.Utils;
  *
  */
 public class Retriever implements Runnable {
-
 	private final PlayerClient robot;
 	private final SonarInterface sonar;
 	private final Position2DInterface p2d;
@@ -39,6 +40,7 @@ public class Retriever implements Runnable {
 	private final Mapper mapper;
 	private final GridMap map, floorplan, cspace;
 	private final Localizer localizer;
+	private final Refiner refiner;
 	private final MapViewer mapviewer, planviewer;
 	private boolean running = true;
 
@@ -60,11 +62,12 @@ public class Retriever implements Runnable {
 		this.sonar.setSonarPower(1);
 		this.p2d.setMotorPower(1);
 
-		this.floorplan = GridMap.loadFromRaw(1600, 500, 0.082, floorplan);
+		this.floorplan = GridMap.loadFromRaw(floorplan);
 		this.cspace = this.floorplan.getCSpace();
 		this.map = new GridMap(5248/2, 5248/2, 0.05);
 		this.mapper = new Mapper(this.map);
 		this.localizer = new Localizer(this.floorplan, this.map);
+		this.refiner = new Refiner(this.localizer, new LikelihoodField(this.floorplan));
 
 		this.planner = new Planner(waypoints, cspace);
 
@@ -93,7 +96,8 @@ public class Retriever implements Runnable {
 	public void run() {
 		double x, y, yaw, angle, length, rx, ry, ryaw;
 		float[] ranges;
-		Position candidate;
+		Position origin;
+		long dropped = 0;
 		while(running && !planner.isDone()) {
 			robot.readAll();
 			if (!sonar.isDataReady()) continue;
@@ -104,25 +108,33 @@ public class Retriever implements Runnable {
 			y = p2d.getData().getPos().getPy();
 			yaw = p2d.getData().getPos().getPa();
 
+			// start position of the localizer, corrected for odometry drift
+			// by the refiner thread once the localizer has converged
+			refiner.update(ranges, x, y, yaw);
+			origin = refiner.getOrigin(localizer.getEstimate());
+
 			// convert coordinates
-			candidate = localizer.getCandidate();
-			angle = Math.atan2(y, x) + candidate.getYaw();
+			angle = Math.atan2(y, x) + origin.getYaw();
 			length = Utils.elength(x, y);
-			rx = Math.cos(angle) * length + candidate.getX();
-			ry = Math.sin(angle) * length + candidate.getY();
-			ryaw = Utils.normalize(yaw +  candidate.getYaw());
+			rx = Math.cos(angle) * length + origin.getX();
+			ry = Math.sin(angle) * length + origin.getY();
+			ryaw = Utils.normalize(yaw +  origin.getYaw());
 			cspace.setX(rx); cspace.setY(ry); cspace.setYaw(ryaw);
 			//System.out.println("Retriever: real coordinates ("+ rx + ", "+ry+", "+ryaw+")");
 
 			planner.update(rx, ry);
 			apf.update(ranges, rx, ry, ryaw, planner.getNext());
-			mapper.update(ranges, x, y, yaw);
+			// a full queue drops the scan, report it as 1, 2, 4, 8... drops build up
+			if(!mapper.update(ranges, x, y, yaw) && (++dropped & (dropped - 1)) == 0)
+				System.out.println("Retriever: mapper dropped " + dropped + " scans, " + mapper.getQueue());
 		}
 		running = false;
+		System.out.println("Retriever: mapper dropped " + dropped + " scans in total");
 
 		mapviewer.shutdown();
 		planviewer.shutdown();
 		apf.shutdown();
+		refiner.shutdown();
 		localizer.shutdown();
 		mapper.shutdown();
 		planner.shutdown();
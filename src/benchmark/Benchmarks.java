@@ -0,0 +1,74 @@
+/**
+ *
+ */
+
+package benchmark;
+
+import java.util.Random;
+
+import localization.Mapper;
+
+import common.GridMap;
+
+/**
+ * Shared fixtures for the benchmarks
+ * @author ziyan
+ *
+ */
+public class Benchmarks {
+	/**
+	 * Local map size used by Retriever
+	 */
+	public static final int MAP_SIZE = 5248 / 2;
+
+	/**
+	 * Local map resolution used by Retriever
+	 */
+	public static final double MAP_MPP = 0.05;
+
+	/**
+	 * Random sonar scans around the origin, reproducible
+	 * @param scans number of scans
+	 * @return
+	 */
+	public static double[][] scans(final int scans) {
+		final Random random = new Random(1);
+		final double[][] result = new double[scans][];
+		for(int k = 0; k < scans; k++) {
+			final double[] scan = new double[3 + 8];
+			scan[0] = (random.nextDouble() - 0.5) * 6.0;
+			scan[1] = (random.nextDouble() - 0.5) * 6.0;
+			scan[2] = (random.nextDouble() - 0.5) * 2.0 * Math.PI;
+			for(int i = 3; i < scan.length; i++)
+				scan[i] = 0.3 + 4.0 * random.nextDouble();
+			result[k] = scan;
+		}
+		return result;
+	}
+
+	/**
+	 * Sonar ranges of a scan
+	 * @param scan
+	 * @return
+	 */
+	public static float[] ranges(final double[] scan) {
+		final float[] ranges = new float[scan.length - 3];
+		for(int i = 0; i < ranges.length; i++)
+			ranges[i] = (float)scan[i + 3];
+		return ranges;
+	}
+
+	/**
+	 * Local map explored by random scans around the origin
+	 * @param scans number of scans
+	 * @return
+	 */
+	public static GridMap explore(final int scans) {
+		final GridMap map = new GridMap(MAP_SIZE, MAP_SIZE, MAP_MPP);
+		for(final double[] scan : scans(scans)) {
+			Mapper.map(map, scan[0], scan[1]);
+			Mapper.map(map, ranges(scan), scan[0], scan[1], scan[2]);
+		}
+		return map;
+	}
+}
@@ -0,0 +1,81 @@
+/**
+ *
+ */
+
+package benchmark;
+
+import localization.ConeStencils;
+import localization.Mapper;
+
+import common.GridMap;
+
+/**
+ * Compare sonar mapping with precomputed cone stencils against the per cell
+ * trigonometric path, exits with status 1 if the maps differ by more than
+ * the tolerance
+ * usage: java benchmark.ConeBenchmark [scans]
+ * @author ziyan
+ *
+ */
+public class ConeBenchmark {
+	/**
+	 * Largest acceptable mean absolute difference per known cell
+	 */
+	private static final double TOLERANCE = 0.5;
+
+	/**
+	 * Largest acceptable fraction of known cells that are free in one map and occupied in the other
+	 */
+	private static final double FLIP_TOLERANCE = 0.001;
+
+	public static void main(final String[] args) {
+		final int n = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		final double[][] scans = Benchmarks.scans(n);
+		final ConeStencils stencils = new ConeStencils(Benchmarks.MAP_MPP);
+
+		// equivalence
+		final GridMap reference = new GridMap(Benchmarks.MAP_SIZE, Benchmarks.MAP_SIZE, Benchmarks.MAP_MPP);
+		final GridMap map = new GridMap(Benchmarks.MAP_SIZE, Benchmarks.MAP_SIZE, Benchmarks.MAP_MPP);
+		for(final double[] scan : scans) {
+			Mapper.map(reference, Benchmarks.ranges(scan), scan[0], scan[1], scan[2]);
+			Mapper.map(map, stencils, Benchmarks.ranges(scan), scan[0], scan[1], scan[2]);
+		}
+		final int top = Math.min(reference.getTop(), map.getTop()), bottom = Math.max(reference.getBottom(), map.getBottom());
+		final int left = Math.min(reference.getLeft(), map.getLeft()), right = Math.max(reference.getRight(), map.getRight());
+		long known = 0, sum = 0, flips = 0;
+		int max = 0;
+		for(int r = top; r <= bottom; r++)
+			for(int c = left; c <= right; c++) {
+				final int a = reference.getData(r, c), b = map.getData(r, c);
+				if(a == 0 && b == 0) continue;
+				known++;
+				sum += Math.abs(a - b);
+				max = Math.max(max, Math.abs(a - b));
+				if((a > 0 && b < 0) || (a < 0 && b > 0)) flips++;
+			}
+		final double mean = (double)sum / known, flipped = (double)flips / known;
+		System.out.println("known cells: " + known + ", mean difference: " + mean + ", max difference: " + max
+				+ ", flipped: " + flipped);
+
+		for(int round = 0; round < 5; round++) {
+			final GridMap a = new GridMap(Benchmarks.MAP_SIZE, Benchmarks.MAP_SIZE, Benchmarks.MAP_MPP);
+			final GridMap b = new GridMap(Benchmarks.MAP_SIZE, Benchmarks.MAP_SIZE, Benchmarks.MAP_MPP);
+			long start = System.nanoTime();
+			for(final double[] scan : scans)
+				Mapper.map(a, Benchmarks.ranges(scan), scan[0], scan[1], scan[2]);
+			final long before = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(final double[] scan : scans)
+				Mapper.map(b, stencils, Benchmarks.ranges(scan), scan[0], scan[1], scan[2]);
+			final long after = System.nanoTime() - start;
+			System.out.println("round " + round + ": reference " + before / n / 1000 + " us/scan, stencils "
+					+ after / n / 1000 + " us/scan, speedup " + (double)before / (double)after);
+		}
+
+		if(mean > TOLERANCE || flipped > FLIP_TOLERANCE) {
+			System.out.println("FAILED: maps differ by more than the tolerance");
+			System.exit(1);
+		}
+		System.out.println("OK: maps agree within the tolerance");
+	}
+}
@@ -0,0 +1,84 @@
+/**
+ *
+ */
+
+package benchmark;
+
+import java.io.IOException;
+import java.util.Random;
+
+import common.GridMap;
+import common.Position;
+import common.Utils;
+
+/**
+ * Compare GridMap.diff against the trigonometric scoring it replaced
+ * usage: java benchmark.DiffBenchmark [floorplan] [candidates]
+ * @author ziyan
+ *
+ */
+public class DiffBenchmark {
+
+	public static void main(final String[] args) throws IOException {
+		final GridMap floorplan = GridMap.loadFromRaw(args.length > 0 ? args[0] : "3large.raw");
+		final int n = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		final GridMap map = Benchmarks.explore(2000);
+
+		final Random random = new Random(1);
+		final Position[] candidates = new Position[n];
+		for(int i = 0; i < n; i++)
+			candidates[i] = new Position("c" + i,
+					(random.nextDouble() - 0.5) * floorplan.getWidth() * floorplan.getMPP(),
+					(random.nextDouble() - 0.5) * floorplan.getHeight() * floorplan.getMPP(),
+					Utils.normalize(random.nextDouble() * 2.0 * Math.PI));
+
+		// equivalence
+		double error = 0.0;
+		for(final Position p : candidates)
+			error = Math.max(error, Math.abs(GridMap.diff(floorplan, map, p) - reference(floorplan, map, p)));
+		System.out.println("max score difference: " + error);
+
+		for(int round = 0; round < 5; round++) {
+			long start = System.nanoTime();
+			for(final Position p : candidates)
+				reference(floorplan, map, p);
+			final long before = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(final Position p : candidates)
+				GridMap.diff(floorplan, map, p);
+			final long after = System.nanoTime() - start;
+			System.out.println("round " + round + ": reference " + before / n / 1000 + " us/candidate, diff "
+					+ after / n / 1000 + " us/candidate, speedup " + (double)before / (double)after);
+		}
+	}
+
+	/**
+	 * Scoring kernel as it was, with trigonometry for every cell
+	 * @param floorplan
+	 * @param map
+	 * @param position
+	 * @return
+	 */
+	public static double reference(final GridMap floorplan, final GridMap map, final Position position) {
+		if(!map.isSufficient()) return 0.0;
+		int count = 0;
+		int diff = 0;
+		double x, y, a, t;
+		int fr, fc;
+		for(int r = map.getTop(); r <= map.getBottom(); r++) {
+			for(int c = map.getLeft(); c <= map.getRight(); c++) {
+				if(map.getData(r, c) == 0) continue;
+				x = map.getMPP() * (c - map.getWidth() / 2);
+				y = map.getMPP() * ((map.getHeight() - r) - map.getHeight() / 2);
+				a = Utils.normalize(Math.atan2(y, x) + position.getYaw());
+				t = Utils.elength(x, y);
+				fc = (int)((position.getX() + t * Math.cos(a)) / floorplan.getMPP()) + floorplan.getWidth() / 2;
+				fr = floorplan.getHeight() - ((int)((position.getY() + t * Math.sin(a)) / floorplan.getMPP()) + floorplan.getHeight() / 2);
+				if(fc < 0 || fr < 0 || fc >= floorplan.getWidth() || fr >= floorplan.getHeight()) continue;
+				count++;
+				diff += Math.abs(map.getData(r, c) - floorplan.getData(fr, fc));
+			}
+		}
+		return GridMap.score(count, diff);
+	}
+}
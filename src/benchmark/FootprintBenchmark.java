@@ -0,0 +1,96 @@
+/**
+ *
+ */
+
+package benchmark;
+
+import localization.Mapper;
+
+import common.GridMap;
+import common.Pioneer;
+import common.Utils;
+
+/**
+ * Compare clearing the robot footprint with the cached mask against testing
+ * the distance of every cell around the robot, exits with status 1 if the
+ * footprints differ by more than the tolerance
+ * usage: java benchmark.FootprintBenchmark [scans]
+ * @author ziyan
+ *
+ */
+public class FootprintBenchmark {
+	/**
+	 * Largest acceptable fraction of footprint cells cleared by only one of the two
+	 */
+	private static final double TOLERANCE = 0.15;
+
+	public static void main(final String[] args) {
+		final int n = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		final double[][] scans = Benchmarks.scans(n);
+
+		// equivalence, one footprint at a time
+		long cleared = 0, different = 0;
+		final GridMap a = new GridMap(Benchmarks.MAP_SIZE, Benchmarks.MAP_SIZE, Benchmarks.MAP_MPP);
+		final GridMap b = new GridMap(Benchmarks.MAP_SIZE, Benchmarks.MAP_SIZE, Benchmarks.MAP_MPP);
+		for(int k = 0; k < Math.min(n, 1000); k++) {
+			final double x = scans[k][0], y = scans[k][1];
+			reference(a, x, y);
+			Mapper.map(b, x, y);
+			final int top = a.getRow(y + 2.0 * Pioneer.RADIUS), bottom = a.getRow(y - 2.0 * Pioneer.RADIUS);
+			final int left = a.getCol(x - 2.0 * Pioneer.RADIUS), right = a.getCol(x + 2.0 * Pioneer.RADIUS);
+			for(int r = top; r <= bottom; r++)
+				for(int c = left; c <= right; c++) {
+					if(a.getData(r, c) != 0) cleared++;
+					if(a.getData(r, c) != b.getData(r, c)) different++;
+					a.setData(r, c, (byte)0);
+					b.setData(r, c, (byte)0);
+				}
+		}
+		final double fraction = (double)different / cleared;
+		System.out.println("footprint cells: " + cleared + ", cleared by only one: " + fraction);
+
+		for(int round = 0; round < 5; round++) {
+			final GridMap c = new GridMap(Benchmarks.MAP_SIZE, Benchmarks.MAP_SIZE, Benchmarks.MAP_MPP);
+			final GridMap d = new GridMap(Benchmarks.MAP_SIZE, Benchmarks.MAP_SIZE, Benchmarks.MAP_MPP);
+			long start = System.nanoTime();
+			for(final double[] scan : scans)
+				reference(c, scan[0], scan[1]);
+			final long before = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(final double[] scan : scans)
+				Mapper.map(d, scan[0], scan[1]);
+			final long after = System.nanoTime() - start;
+			System.out.println("round " + round + ": per cell " + before / n + " ns/footprint, mask "
+					+ after / n + " ns/footprint, speedup " + (double)before / (double)after);
+		}
+
+		if(fraction > TOLERANCE) {
+			System.out.println("FAILED: footprints differ by more than the tolerance");
+			System.exit(1);
+		}
+		System.out.println("OK: footprints agree within the tolerance");
+	}
+
+	/**
+	 * Footprint clearing testing the distance of every cell, as the mapper used to
+	 * @param map
+	 * @param x
+	 * @param y
+	 */
+	private static void reference(final GridMap map, final double x, final double y) {
+		final int left = (int)((x - Pioneer.RADIUS) / map.getMPP());
+		final int right = (int)((x + Pioneer.RADIUS) / map.getMPP());
+		final int top = (int)((y - Pioneer.RADIUS) / map.getMPP());
+		final int bottom = (int)((y + Pioneer.RADIUS) / map.getMPP());
+		for(int h = top; h <= bottom; h++) {
+			final int hh = map.getHeight() - (h + map.getHeight()/2);
+			if(hh < 0 || hh >= map.getHeight()) continue;
+			for(int w = left; w <= right; w++) {
+				final int ww = w + map.getWidth()/2;
+				if(ww < 0 || ww >= map.getWidth()) continue;
+				if(Utils.elength(x - map.getMPP() * w, y - map.getMPP() * h) > Pioneer.RADIUS) continue;
+				map.setData(hh, ww, GridMap.TRAVERSABLE);
+			}
+		}
+	}
+}
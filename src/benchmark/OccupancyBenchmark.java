@@ -0,0 +1,114 @@
+/**
+ *
+ */
+
+package benchmark;
+
+import java.util.Arrays;
+
+import localization.ConeStencils;
+import localization.Mapper;
+import localization.OccupancyLayer;
+
+import common.GridMap;
+import common.Pioneer;
+
+/**
+ * Compare the log-odds occupancy layer against mapping the sonar readings
+ * into the map data directly: throughput including the export, fraction of
+ * cells pinned at a limit, and number of scans needed to clear a wall that
+ * moved away, exits with status 1 if the log-odds layer clears the wall
+ * slower or leaves more cells at a limit than the map data
+ * usage: java benchmark.OccupancyBenchmark [scans]
+ * @author ziyan
+ *
+ */
+public class OccupancyBenchmark {
+	public static void main(final String[] args) {
+		final int n = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		final double[][] scans = Benchmarks.scans(n);
+		final ConeStencils stencils = new ConeStencils(Benchmarks.MAP_MPP);
+
+		double pinned = 0.0, limited = 0.0;
+		for(int round = 0; round < 5; round++) {
+			final GridMap a = new GridMap(Benchmarks.MAP_SIZE, Benchmarks.MAP_SIZE, Benchmarks.MAP_MPP);
+			final GridMap b = new GridMap(Benchmarks.MAP_SIZE, Benchmarks.MAP_SIZE, Benchmarks.MAP_MPP);
+			final OccupancyLayer layer = new OccupancyLayer(Benchmarks.MAP_SIZE, Benchmarks.MAP_SIZE, stencils);
+			long start = System.nanoTime();
+			for(final double[] scan : scans) {
+				a.beginUpdate();
+				Mapper.map(a, scan[0], scan[1]);
+				Mapper.map(a, stencils, Benchmarks.ranges(scan), scan[0], scan[1], scan[2]);
+				a.endUpdate();
+			}
+			final long before = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(final double[] scan : scans) {
+				layer.free(scan[0], scan[1]);
+				layer.update(Benchmarks.ranges(scan), scan[0], scan[1], scan[2]);
+				b.beginUpdate();
+				layer.export(b);
+				b.endUpdate();
+			}
+			final long after = System.nanoTime() - start;
+			System.out.println("round " + round + ": map data " + before / n / 1000 + " us/scan, log-odds "
+					+ after / n / 1000 + " us/scan, speedup " + (double)before / (double)after);
+			if(round > 0) continue;
+
+			// each fraction is taken over the cells known to that map
+			long knownA = 0, knownB = 0, pinnedA = 0, limitedB = 0;
+			for(int r = a.getTop(); r <= a.getBottom(); r++)
+				for(int c = a.getLeft(); c <= a.getRight(); c++) {
+					final int d = a.getData(r, c);
+					if(d == 0) continue;
+					knownA++;
+					if(d == GridMap.TRAVERSABLE || d == GridMap.INTRAVERSABLE) pinnedA++;
+				}
+			for(int r = b.getTop(); r <= b.getBottom(); r++)
+				for(int c = b.getLeft(); c <= b.getRight(); c++) {
+					if(layer.get(r, c) == 0.0f) continue;
+					knownB++;
+					// the layer only approaches its limits, count what the map ends up with
+					final int d = layer.getData(r, c);
+					if(d == GridMap.TRAVERSABLE || d == GridMap.INTRAVERSABLE) limitedB++;
+				}
+			pinned = (double)pinnedA / knownA;
+			limited = (double)limitedB / knownB;
+			System.out.println("known cells: map data " + knownA + ", log-odds " + knownB
+					+ ", pinned in map data: " + pinned + ", pinned in exported log-odds: " + limited);
+		}
+
+		// a wall in front of the robot for a while, then gone
+		final GridMap a = new GridMap(Benchmarks.MAP_SIZE, Benchmarks.MAP_SIZE, Benchmarks.MAP_MPP);
+		final GridMap b = new GridMap(Benchmarks.MAP_SIZE, Benchmarks.MAP_SIZE, Benchmarks.MAP_MPP);
+		final OccupancyLayer layer = new OccupancyLayer(Benchmarks.MAP_SIZE, Benchmarks.MAP_SIZE, stencils);
+		final float[] wall = new float[Pioneer.SONAR_COUNT], open = new float[Pioneer.SONAR_COUNT];
+		Arrays.fill(wall, 2.0f);
+		Arrays.fill(open, 4.5f);
+		final double bearing = Pioneer.SONAR_BEARINGS[0];
+		final double distance = Pioneer.SONAR_OFFSETS[0] + 2.0 + 0.4;
+		final int r = a.getRow(distance * Math.sin(bearing)), c = a.getCol(distance * Math.cos(bearing));
+		for(int k = 0; k < 200; k++) {
+			Mapper.map(a, stencils, wall, 0.0, 0.0, 0.0);
+			layer.update(wall, 0.0, 0.0, 0.0);
+		}
+		layer.export(b);
+		System.out.println("wall cell after 200 scans: map data " + a.getData(r, c) + ", log-odds "
+				+ layer.get(r, c) + " (exported " + b.getData(r, c) + ")");
+		int clearA = -1, clearB = -1;
+		for(int k = 1; k <= 200 && (clearA < 0 || clearB < 0); k++) {
+			Mapper.map(a, stencils, open, 0.0, 0.0, 0.0);
+			layer.update(open, 0.0, 0.0, 0.0);
+			layer.export(b);
+			if(clearA < 0 && a.getData(r, c) < 0) clearA = k;
+			if(clearB < 0 && b.getData(r, c) < 0) clearB = k;
+		}
+		System.out.println("scans to clear the wall: map data " + clearA + ", log-odds " + clearB);
+
+		if(clearB < 0 || (clearA >= 0 && clearB > clearA) || limited > pinned) {
+			System.out.println("FAILED: log-odds clear slower or saturate more than map data");
+			System.exit(1);
+		}
+		System.out.println("OK: log-odds clear at least as fast and saturate less than map data");
+	}
+}
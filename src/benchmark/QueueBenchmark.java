@@ -0,0 +1,77 @@
+/**
+ *
+ */
+
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import localization.Mapper;
+import localization.ScanQueue;
+
+import common.GridMap;
+
+/**
+ * Feed the mapper thread with scans at increasing rates and report how many
+ * were dropped, how deep the queue got and how long scans waited
+ * usage: java benchmark.QueueBenchmark [seconds per rate]
+ * @author ziyan
+ *
+ */
+public class QueueBenchmark {
+	/**
+	 * Scan rates to try (Hz)
+	 */
+	private static final int[] RATES = { 10, 100, 1000, 4000 };
+
+	public static void main(final String[] args) {
+		final double seconds = args.length > 0 ? Double.parseDouble(args[0]) : 2.0;
+		final double[][] scans = Benchmarks.scans(1000);
+		final GridMap map = new GridMap(Benchmarks.MAP_SIZE, Benchmarks.MAP_SIZE, Benchmarks.MAP_MPP);
+		final Mapper mapper = new Mapper(map);
+		final ScanQueue queue = mapper.getQueue();
+
+		// warm up, builds the cone stencils of every bearing
+		for(final double[] scan : scans) {
+			while(!mapper.update(Benchmarks.ranges(scan), scan[0], scan[1], scan[2]))
+				LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+		}
+		drain(queue);
+
+		for(final int rate : RATES) {
+			final long offered = queue.getOffered(), consumed = queue.getConsumed();
+			final long dropped = queue.getDropped(), batches = queue.getBatches();
+			queue.resetPeak();
+			final long period = TimeUnit.SECONDS.toNanos(1) / rate;
+			final int n = (int)(seconds * rate);
+			long next = System.nanoTime();
+			for(int k = 0; k < n; k++) {
+				final double[] scan = scans[k % scans.length];
+				mapper.update(Benchmarks.ranges(scan), scan[0], scan[1], scan[2]);
+				next += period;
+				final long wait = next - System.nanoTime();
+				if(wait > 0) LockSupport.parkNanos(wait);
+			}
+			drain(queue);
+			System.out.println(rate + " Hz: offered = " + (queue.getOffered() - offered)
+					+ ", consumed = " + (queue.getConsumed() - consumed)
+					+ ", dropped = " + (queue.getDropped() - dropped)
+					+ ", scans per batch = " + (double)(queue.getConsumed() - consumed) / Math.max(1, queue.getBatches() - batches)
+					+ ", peak depth = " + queue.getPeakDepth() + ", last latency = " + queue.getLastLatency() / 1000 + " us");
+		}
+		mapper.shutdown();
+		try {
+			mapper.join();
+		} catch (final InterruptedException e) { }
+	}
+
+	/**
+	 * Wait for the mapper to catch up
+	 * @param queue
+	 */
+	private static void drain(final ScanQueue queue) {
+		while(!queue.isEmpty())
+			LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+	}
+}
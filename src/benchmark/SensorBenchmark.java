@@ -0,0 +1,86 @@
+/**
+ *
+ */
+
+package benchmark;
+
+import java.util.Random;
+
+import localization.ConeStencils;
+import localization.RangeSensorModel;
+import localization.RayCastModel;
+import localization.SonarConeModel;
+
+import common.BeamGeometry;
+import common.GridMap;
+import common.Utils;
+
+/**
+ * Beams per second of the range sensor models, exits with status 1 if a
+ * laser scanner at the target rate cannot be kept up with
+ * usage: java benchmark.SensorBenchmark [scans]
+ * @author ziyan
+ *
+ */
+public class SensorBenchmark {
+	/**
+	 * Scan rate the laser models have to keep up with (Hz)
+	 */
+	private static final double RATE = 40.0;
+
+	/**
+	 * Laser range (meter)
+	 */
+	private static final double LASER_RANGE = 8.0;
+
+	public static void main(final String[] args) {
+		final int n = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		final double[][] poses = Benchmarks.scans(n);
+		final RangeSensorModel[] models = new RangeSensorModel[] {
+				new SonarConeModel(new ConeStencils(Benchmarks.MAP_MPP)),
+				new RayCastModel(BeamGeometry.laser(360, Utils.dtor(270.0), LASER_RANGE)),
+				new RayCastModel(BeamGeometry.laser(1080, Utils.dtor(270.0), LASER_RANGE))
+		};
+		final String[] names = new String[] { "sonar cones", "ray casting, 360 beams", "ray casting, 1080 beams" };
+
+		boolean failed = false;
+		for(int m = 0; m < models.length; m++) {
+			final RangeSensorModel model = models[m];
+			final float[][] scans = ranges(model.getGeometry(), n);
+			double rate = 0.0;
+			for(int round = 0; round < 3; round++) {
+				final GridMap map = new GridMap(Benchmarks.MAP_SIZE, Benchmarks.MAP_SIZE, Benchmarks.MAP_MPP);
+				final long start = System.nanoTime();
+				for(int k = 0; k < n; k++) {
+					map.beginUpdate();
+					model.map(map, scans[k], poses[k][0], poses[k][1], poses[k][2]);
+					map.endUpdate();
+				}
+				rate = n / ((System.nanoTime() - start) / 1e9);
+			}
+			final double beams = rate * model.getGeometry().getCount();
+			System.out.println(names[m] + ": " + (long)beams + " beams/s, " + (long)rate + " scans/s");
+			if(model instanceof RayCastModel && rate < RATE) failed = true;
+		}
+		if(failed) {
+			System.out.println("FAILED: cannot keep up with a laser scanner at " + RATE + " Hz");
+			System.exit(1);
+		}
+		System.out.println("OK: keeps up with a laser scanner at " + RATE + " Hz");
+	}
+
+	/**
+	 * Random readings, reproducible, some out of range
+	 * @param geometry
+	 * @param scans
+	 * @return
+	 */
+	private static float[][] ranges(final BeamGeometry geometry, final int scans) {
+		final Random random = new Random(2);
+		final float[][] result = new float[scans][geometry.getCount()];
+		for(int k = 0; k < scans; k++)
+			for(int i = 0; i < geometry.getCount(); i++)
+				result[k][i] = (float)(0.3 + 1.1 * geometry.getRange() * random.nextDouble());
+		return result;
+	}
+}
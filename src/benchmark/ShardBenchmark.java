@@ -0,0 +1,92 @@
+/**
+ *
+ */
+
+package benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import localization.ConeStencils;
+import localization.Mapper;
+import localization.RangeSensorModel;
+import localization.ShardedMapper;
+import localization.SonarConeModel;
+
+import common.GridMap;
+import common.Parallel;
+
+/**
+ * Compare the sharded mapper against mapping the scans one after another,
+ * exits with status 1 if the maps differ
+ * usage: java benchmark.ShardBenchmark [scans]
+ * @author ziyan
+ *
+ */
+public class ShardBenchmark {
+	/**
+	 * Numbers of shards to try
+	 */
+	private static final int[] WORKERS = { 1, 2, 4, 8 };
+
+	public static void main(final String[] args) {
+		final int n = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		final double[][] scans = Benchmarks.scans(n);
+		final RangeSensorModel model = new SonarConeModel(new ConeStencils(Benchmarks.MAP_MPP));
+		System.out.println("parallelism: " + Parallel.getPool().getParallelism());
+
+		GridMap reference = null;
+		for(int round = 0; round < 3; round++) {
+			reference = new GridMap(Benchmarks.MAP_SIZE, Benchmarks.MAP_SIZE, Benchmarks.MAP_MPP);
+			final long start = System.nanoTime();
+			for(final double[] scan : scans) {
+				reference.beginUpdate();
+				Mapper.map(reference, scan[0], scan[1]);
+				model.map(reference, Benchmarks.ranges(scan), scan[0], scan[1], scan[2]);
+				reference.endUpdate();
+			}
+			if(round == 2) System.out.println("sequential: " + (long)(n / ((System.nanoTime() - start) / 1e9)) + " scans/s");
+		}
+
+		boolean failed = false;
+		for(final int workers : WORKERS) {
+			GridMap map = null;
+			long elapsed = 0;
+			for(int round = 0; round < 3; round++) {
+				map = new GridMap(Benchmarks.MAP_SIZE, Benchmarks.MAP_SIZE, Benchmarks.MAP_MPP);
+				final ShardedMapper mapper = new ShardedMapper(map, workers);
+				final ShardedMapper.Source source = mapper.addSource(model);
+				final long start = System.nanoTime();
+				for(final double[] scan : scans)
+					while(!source.update(Benchmarks.ranges(scan), scan[0], scan[1], scan[2]))
+						LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+				while(source.getQueue().getConsumed() < n)
+					LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+				elapsed = System.nanoTime() - start;
+				mapper.shutdown();
+				try {
+					mapper.join();
+				} catch (final InterruptedException e) { }
+			}
+			final boolean same = equal(reference, map);
+			failed |= !same;
+			System.out.println(workers + " shards: " + (long)(n / (elapsed / 1e9)) + " scans/s, "
+					+ (same ? "same map" : "DIFFERENT map"));
+		}
+		if(failed) {
+			System.out.println("FAILED: sharded mapping differs from sequential mapping");
+			System.exit(1);
+		}
+		System.out.println("OK: sharded mapping matches sequential mapping");
+	}
+
+	private static boolean equal(final GridMap a, final GridMap b) {
+		if(a.getTop() != b.getTop() || a.getLeft() != b.getLeft() || a.getBottom() != b.getBottom() || a.getRight() != b.getRight())
+			return false;
+		if(a.getChanges() != b.getChanges()) return false;
+		for(int r = a.getTop(); r <= a.getBottom(); r++)
+			for(int c = a.getLeft(); c <= a.getRight(); c++)
+				if(a.getData(r, c) != b.getData(r, c)) return false;
+		return true;
+	}
+}
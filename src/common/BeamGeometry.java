@@ -0,0 +1,97 @@
+/**
+ *
+ */
+
+package common;
+
+/**
+ * Layout of the beams of a range sensor on the robot: bearing and distance
+ * from the center of the robot of each beam, effective range and beam width
+ * @author ziyan
+ *
+ */
+public class BeamGeometry {
+	private final double[] bearings;
+	private final double[] offsets;
+	private final double range;
+	private final double fov;
+
+	/**
+	 * Beam geometry
+	 * @param bearings bearing of each beam relative to the robot
+	 * @param offsets distance from each sensor to the center of the robot
+	 * @param range effective range
+	 * @param fov width of a beam (radian)
+	 */
+	public BeamGeometry(final double[] bearings, final double[] offsets, final double range, final double fov) {
+		if(bearings.length != offsets.length) throw new IllegalArgumentException("Bearings and offsets do not match");
+		this.bearings = bearings.clone();
+		this.offsets = offsets.clone();
+		this.range = range;
+		this.fov = fov;
+	}
+
+	/**
+	 * The 8 front sonars of the pioneer
+	 * @return
+	 */
+	public static BeamGeometry sonar() {
+		return new BeamGeometry(Pioneer.SONAR_BEARINGS, Pioneer.SONAR_OFFSETS, Pioneer.SONAR_RANGE, Pioneer.SONAR_FOV);
+	}
+
+	/**
+	 * Laser scanner at the center of the robot with evenly spaced beams
+	 * @param count number of beams
+	 * @param sweep angle between the first and the last beam (radian)
+	 * @param range effective range
+	 * @return
+	 */
+	public static BeamGeometry laser(final int count, final double sweep, final double range) {
+		final double[] bearings = new double[count];
+		for(int i = 0; i < count; i++)
+			bearings[i] = count > 1 ? -sweep / 2.0 + sweep * i / (count - 1) : 0.0;
+		return new BeamGeometry(bearings, new double[count], range, count > 1 ? sweep / (count - 1) : 0.0);
+	}
+
+	/**
+	 * Number of beams
+	 * @return
+	 */
+	public int getCount() {
+		return bearings.length;
+	}
+
+	/**
+	 * Bearing of a beam relative to the robot
+	 * @param i
+	 * @return
+	 */
+	public double getBearing(final int i) {
+		return bearings[i];
+	}
+
+	/**
+	 * Distance from a sensor to the center of the robot
+	 * @param i
+	 * @return
+	 */
+	public double getOffset(final int i) {
+		return offsets[i];
+	}
+
+	/**
+	 * Effective range, longer readings mean nothing was hit
+	 * @return
+	 */
+	public double getRange() {
+		return range;
+	}
+
+	/**
+	 * Width of a beam (radian)
+	 * @return
+	 */
+	public double getFieldOfView() {
+		return fov;
+	}
+}
@@ -0,0 +1,165 @@
+/**
+ *
+ */
+
+package common;
+
+/**
+ * Exact two-pass distance transform (Meijster et al.) over a row-major grid,
+ * columns and then rows are independent so both passes run in parallel bands
+ * @author ziyan
+ *
+ */
+public class DistanceTransform {
+	/**
+	 * Distance transform using 4-connected (manhattan) distance
+	 * @param source row-major mask of source cells (distance 0)
+	 * @param width
+	 * @param height
+	 * @return distance of each cell to the nearest source,
+	 * <code>getInfinity(width, height)</code> or more if there is no source
+	 */
+	public static int[] manhattan(final boolean[] source, final int width, final int height) {
+		final int[] dist = columns(source, width, height);
+		Parallel.run(0, height, Parallel.grain(width, Parallel.BAND_CELLS), new Parallel.Body() {
+			public void run(final int from, final int to) {
+				final int[] row = new int[width];
+				for(int y = from; y < to; y++)
+					manhattanRow(dist, row, y * width, width);
+			}
+		});
+		return dist;
+	}
+
+	/**
+	 * Distance transform using squared euclidean distance
+	 * @param source row-major mask of source cells (distance 0)
+	 * @param width
+	 * @param height
+	 * @return squared distance of each cell to the nearest source,
+	 * at least the square of <code>getInfinity(width, height)</code> if there is no source,
+	 * capped at <code>Integer.MAX_VALUE</code>
+	 */
+	public static int[] squaredEuclidean(final boolean[] source, final int width, final int height) {
+		final int[] dist = columns(source, width, height);
+		Parallel.run(0, height, Parallel.grain(width, Parallel.BAND_CELLS), new Parallel.Body() {
+			public void run(final int from, final int to) {
+				final int[] row = new int[width];
+				final int[] s = new int[width];
+				final int[] t = new int[width];
+				for(int y = from; y < to; y++)
+					euclideanRow(dist, row, s, t, y * width, width);
+			}
+		});
+		return dist;
+	}
+
+	/**
+	 * Distance used for cells that have no source
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	public static int getInfinity(final int width, final int height) {
+		return width + height;
+	}
+
+	/**
+	 * First pass: vertical distance to the nearest source in each column
+	 * @param source
+	 * @param width
+	 * @param height
+	 * @return
+	 */
+	static int[] columns(final boolean[] source, final int width, final int height) {
+		final int[] dist = new int[width * height];
+		Parallel.run(0, width, Parallel.grain(height, Parallel.BAND_CELLS), new Parallel.Body() {
+			public void run(final int from, final int to) {
+				for(int x = from; x < to; x++)
+					column(source, dist, x, width, height);
+			}
+		});
+		return dist;
+	}
+
+	/**
+	 * First pass for a single column
+	 * @param source
+	 * @param dist
+	 * @param x
+	 * @param width
+	 * @param height
+	 */
+	static void column(final boolean[] source, final int[] dist, final int x, final int width, final int height) {
+		final int inf = getInfinity(width, height);
+		int g = inf;
+		for(int i = x, end = x + width * height; i < end; i += width) {
+			g = source[i] ? 0 : (g >= inf ? inf : g + 1);
+			dist[i] = g;
+		}
+		for(int i = x + width * (height - 2); i >= 0; i -= width) {
+			if(dist[i + width] < dist[i] - 1)
+				dist[i] = dist[i + width] + 1;
+		}
+	}
+
+	/**
+	 * Second pass for a single row using manhattan distance
+	 * @param dist
+	 * @param row scratch buffer of length width
+	 * @param offset index of the first cell in the row
+	 * @param width
+	 */
+	static void manhattanRow(final int[] dist, final int[] row, final int offset, final int width) {
+		System.arraycopy(dist, offset, row, 0, width);
+		for(int x = 1; x < width; x++)
+			if(row[x - 1] + 1 < row[x]) row[x] = row[x - 1] + 1;
+		for(int x = width - 2; x >= 0; x--)
+			if(row[x + 1] + 1 < row[x]) row[x] = row[x + 1] + 1;
+		System.arraycopy(row, 0, dist, offset, width);
+	}
+
+	/**
+	 * Second pass for a single row using squared euclidean distance
+	 * (lower envelope of parabolas)
+	 * @param dist
+	 * @param g scratch buffer of length width
+	 * @param s scratch buffer of length width
+	 * @param t scratch buffer of length width
+	 * @param offset index of the first cell in the row
+	 * @param width
+	 */
+	static void euclideanRow(final int[] dist, final int[] g, final int[] s, final int[] t, final int offset, final int width) {
+		System.arraycopy(dist, offset, g, 0, width);
+		int q = 0;
+		s[0] = 0;
+		t[0] = 0;
+		for(int u = 1; u < width; u++) {
+			while(q >= 0 && f(t[q], s[q], g) > f(t[q], u, g)) q--;
+			if(q < 0) {
+				q = 0;
+				s[0] = u;
+			} else {
+				final long w = 1 + sep(s[q], u, g);
+				if(w < width) {
+					q++;
+					s[q] = u;
+					t[q] = (int)w;
+				}
+			}
+		}
+		for(int u = width - 1; u >= 0; u--) {
+			dist[offset + u] = (int)Math.min(Integer.MAX_VALUE, f(u, s[q], g));
+			if(u == t[q]) q--;
+		}
+	}
+
+	// in long, the square of the infinity overflows an int beyond about 46000 cells
+	private static long f(final int x, final int i, final int[] g) {
+		return (long)(x - i) * (x - i) + (long)g[i] * g[i];
+	}
+
+	private static long sep(final int i, final int u, final int[] g) {
+		return Math.floorDiv((long)u * u - (long)i * i + (long)g[u] * g[u] - (long)g[i] * g[i], 2L * (u - i));
+	}
+}
@@ -0,0 +1,162 @@
+/**
+ *
+ */
+
+package common;
+
+/**
+ * In-place radix-2 fast fourier transform of row-major complex grids,
+ * rows and then columns are transformed in parallel bands
+ * @author ziyan
+ *
+ */
+public class FFT {
+	/**
+	 * Smallest power of two not less than a length
+	 * @param n
+	 * @return
+	 */
+	public static int size(final int n) {
+		int size = 1;
+		while(size < n) size <<= 1;
+		return size;
+	}
+
+	/**
+	 * Transform a grid in place, the inverse transform is scaled by 1 / (width * height)
+	 * @param re real parts, row-major
+	 * @param im imaginary parts, row-major
+	 * @param width power of two
+	 * @param height power of two
+	 * @param inverse
+	 */
+	public static void transform(final float[] re, final float[] im, final int width, final int height, final boolean inverse) {
+		transform(re, im, width, height, inverse, height);
+	}
+
+	/**
+	 * Transform a grid in place when only the first rows of the result are
+	 * needed, the inverse transform is scaled by 1 / (width * height).
+	 * The row pass is done first for a forward transform and last for an
+	 * inverse one, rows that are all zero before the row pass are skipped,
+	 * as well as rows not needed after it.
+	 * @param re real parts, row-major
+	 * @param im imaginary parts, row-major
+	 * @param width power of two
+	 * @param height power of two
+	 * @param inverse
+	 * @param rows number of leading rows of the result needed
+	 */
+	public static void transform(final float[] re, final float[] im, final int width, final int height, final boolean inverse, final int rows) {
+		if(Integer.bitCount(width) != 1 || Integer.bitCount(height) != 1)
+			throw new IllegalArgumentException("Grid size must be a power of two");
+		if(!inverse) {
+			rows(re, im, width, height, false);
+			columns(re, im, width, height, false);
+			return;
+		}
+		columns(re, im, width, height, true);
+		rows(re, im, width, rows, true);
+		final float scale = 1.0f / ((float)width * (float)height);
+		for(int i = 0; i < rows * width; i++) {
+			re[i] *= scale;
+			im[i] *= scale;
+		}
+	}
+
+	/**
+	 * Transform the first rows of a grid along each row
+	 * @param re
+	 * @param im
+	 * @param width
+	 * @param rows
+	 * @param inverse
+	 */
+	private static void rows(final float[] re, final float[] im, final int width, final int rows, final boolean inverse) {
+		Parallel.run(0, rows, Parallel.grain(width, Parallel.BAND_CELLS), new Parallel.Body() {
+			public void run(final int from, final int to) {
+				final float[] r = new float[width], i = new float[width];
+				for(int y = from; y < to; y++) {
+					boolean zero = true;
+					for(int k = y * width, end = k + width; k < end && zero; k++)
+						zero = re[k] == 0.0f && im[k] == 0.0f;
+					if(zero) continue;
+					System.arraycopy(re, y * width, r, 0, width);
+					System.arraycopy(im, y * width, i, 0, width);
+					transform(r, i, inverse);
+					System.arraycopy(r, 0, re, y * width, width);
+					System.arraycopy(i, 0, im, y * width, width);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Transform a grid along each column
+	 * @param re
+	 * @param im
+	 * @param width
+	 * @param height
+	 * @param inverse
+	 */
+	private static void columns(final float[] re, final float[] im, final int width, final int height, final boolean inverse) {
+		Parallel.run(0, width, Parallel.grain(height, Parallel.BAND_CELLS), new Parallel.Body() {
+			public void run(final int from, final int to) {
+				final float[] r = new float[height], i = new float[height];
+				for(int x = from; x < to; x++) {
+					for(int y = 0, k = x; y < height; y++, k += width) {
+						r[y] = re[k];
+						i[y] = im[k];
+					}
+					transform(r, i, inverse);
+					for(int y = 0, k = x; y < height; y++, k += width) {
+						re[k] = r[y];
+						im[k] = i[y];
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Transform a sequence in place, unscaled
+	 * @param re real parts
+	 * @param im imaginary parts
+	 * @param inverse
+	 */
+	static void transform(final float[] re, final float[] im, final boolean inverse) {
+		final int n = re.length;
+		// bit reversal permutation
+		for(int i = 1, j = 0; i < n; i++) {
+			int bit = n >> 1;
+			for(; (j & bit) != 0; bit >>= 1)
+				j ^= bit;
+			j ^= bit;
+			if(i < j) {
+				float t = re[i]; re[i] = re[j]; re[j] = t;
+				t = im[i]; im[i] = im[j]; im[j] = t;
+			}
+		}
+		// butterflies
+		for(int length = 2; length <= n; length <<= 1) {
+			final double angle = (inverse ? 2.0 : -2.0) * Math.PI / length;
+			final double wr = Math.cos(angle), wi = Math.sin(angle);
+			final int half = length >> 1;
+			for(int start = 0; start < n; start += length) {
+				double cr = 1.0, ci = 0.0;
+				for(int k = 0; k < half; k++) {
+					final int a = start + k, b = a + half;
+					final float br = (float)(re[b] * cr - im[b] * ci);
+					final float bi = (float)(re[b] * ci + im[b] * cr);
+					re[b] = re[a] - br;
+					im[b] = im[a] - bi;
+					re[a] += br;
+					im[a] += bi;
+					final double t = cr * wr - ci * wi;
+					ci = cr * wi + ci * wr;
+					cr = t;
+				}
+			}
+		}
+	}
+}
@@ -3,10 +3,24 @@
  */
 
 package common;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.OutputStream;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 
 /**
@@ -14,7 +28,7 @@ import java.io.PrintStream;
  * @author ziyan
  *
  */
-public class GridMap {
+public class GridMap implements MapWriter {
 	/**
 	 * Minimum area that should be covered before we localize
 	 */
@@ -37,10 +51,52 @@ public class GridMap {
 	 */
 	public static final byte INTRAVERSABLE = 100;
 
+	/**
+	 * Tile edge length is 2 to the power of this
+	 */
+	private static final int TILE_BITS = 5;
+
+	/**
+	 * Tile edge length in pixel
+	 */
+	private static final int TILE_SIZE = 1 << TILE_BITS;
+
+	/**
+	 * Suffix of the sidecar file describing a raw map
+	 */
+	public static final String INFO_SUFFIX = ".info";
+
+	/**
+	 * Snapshot file header ("MRPG")
+	 */
+	private static final int SNAPSHOT_MAGIC = 0x4D525047;
+
+	/**
+	 * Snapshot file format version
+	 */
+	private static final byte SNAPSHOT_VERSION = 1;
+
+	/**
+	 * Snapshot flag: map data is deflated
+	 */
+	private static final byte SNAPSHOT_DEFLATE = 1;
+
+	/**
+	 * Buffer size used when writing or reading map files
+	 */
+	private static final int IO_BUFFER = 1 << 16;
+
 	private final int width, height;
-	private final byte[][] data;
+	private final byte[] data;
 	private final double mpp;
 	private int top, left, bottom, right;
+	private final int tilesWide, tilesHigh;
+	private final int[] tileStamps;
+	private volatile int version;
+	private long changes;
+	private volatile long published;
+	private final CopyOnWriteArrayList<UpdateListener> listeners;
+	private MapPyramid pyramid;
 	private double x, y, yaw;
 	private Point[] path;
 
@@ -53,12 +109,19 @@ public class GridMap {
 	public GridMap(final int width, final int height, final double mpp) {
 		this.width = width;
 		this.height = height;
-		this.data = new byte[height][width];
+		this.data = new byte[width * height];
 		this.mpp = mpp;
 		this.top = height / 2;
 		this.left = width / 2;
 		this.bottom = height / 2;
 		this.right = width / 2;
+		this.tilesWide = (width + TILE_SIZE - 1) >> TILE_BITS;
+		this.tilesHigh = (height + TILE_SIZE - 1) >> TILE_BITS;
+		this.tileStamps = new int[tilesWide * tilesHigh];
+		this.version = 0;
+		this.changes = 0;
+		this.published = 0;
+		this.listeners = new CopyOnWriteArrayList<UpdateListener>();
 	}
 
 	/**
@@ -148,7 +211,52 @@ public class GridMap {
 	 * @return
 	 */
 	public byte getData(final int r, final int c) {
-		return data[r][c];
+		return data[r * width + c];
+	}
+
+	/**
+	 * Get data value at raw index (row-major, see <code>getIndex</code>)
+	 * @param i
+	 * @return
+	 */
+	public byte getData(final int i) {
+		return data[i];
+	}
+
+	/**
+	 * Convert map coordinate to raw index
+	 * @param r
+	 * @param c
+	 * @return
+	 */
+	public int getIndex(final int r, final int c) {
+		return r * width + c;
+	}
+
+	/**
+	 * Copy part of a row into a buffer
+	 * @param r row
+	 * @param c first column
+	 * @param dst destination buffer
+	 * @param offset offset into destination buffer
+	 * @param length number of cells to copy
+	 */
+	public void copyRow(final int r, final int c, final byte[] dst, final int offset, final int length) {
+		System.arraycopy(data, r * width + c, dst, offset, length);
+	}
+
+	/**
+	 * Copy a bounding box of the map into a buffer (row-major, packed)
+	 * @param top
+	 * @param left
+	 * @param bottom
+	 * @param right
+	 * @param dst destination buffer, at least (bottom - top + 1) * (right - left + 1) long
+	 */
+	public void copyRegion(final int top, final int left, final int bottom, final int right, final byte[] dst) {
+		final int length = right - left + 1;
+		for(int r = top, offset = 0; r <= bottom; r++, offset += length)
+			System.arraycopy(data, r * width + left, dst, offset, length);
 	}
 
 	/**
@@ -185,7 +293,410 @@ public class GridMap {
 		if(c < left) left = c;
 		if(c > right) right = c;
 
-		data[r][c] = d;
+		final int i = r * width + c;
+		final byte before = data[i];
+		data[i] = d;
+		if(before != d) changes++;
+		if(pyramid != null) pyramid.update(r, c, before, d);
+		tileStamps[(r >> TILE_BITS) * tilesWide + (c >> TILE_BITS)] = (version | 1) + 1;
+	}
+
+	/**
+	 * Set data value at raw index (row-major, see <code>getIndex</code>)
+	 * @param i
+	 * @param d
+	 */
+	public void setData(final int i, final byte d) {
+		setData(i / width, i % width, d);
+	}
+
+	/**
+	 * Every cell belongs to the map itself
+	 * @param r
+	 * @param c
+	 * @return true
+	 */
+	public boolean owns(final int r, final int c) {
+		return true;
+	}
+
+	/**
+	 * The map itself, see <code>MapWriter</code>
+	 * @return
+	 */
+	public GridMap getMap() {
+		return this;
+	}
+
+	/**
+	 * Set a run of cells of a row to the same value
+	 * @param r
+	 * @param from first column
+	 * @param to last column, inclusive
+	 * @param d
+	 */
+	public void fillRow(final int r, final int from, final int to, byte d) {
+		if(from > to) return;
+		if(d > INTRAVERSABLE) d = INTRAVERSABLE;
+		if(d < TRAVERSABLE) d = TRAVERSABLE;
+
+		// keep track of a boundary
+		if(r < top) top = r;
+		if(r > bottom) bottom = r;
+		if(from < left) left = from;
+		if(to > right) right = to;
+
+		final int offset = r * width;
+		for(int c = from; c <= to; c++) {
+			final byte before = data[offset + c];
+			if(before == d) continue;
+			data[offset + c] = d;
+			changes++;
+			if(pyramid != null) pyramid.update(r, c, before, d);
+		}
+		final int stamp = (version | 1) + 1, row = (r >> TILE_BITS) * tilesWide;
+		for(int tile = from >> TILE_BITS, last = to >> TILE_BITS; tile <= last; tile++)
+			tileStamps[row + tile] = stamp;
+	}
+
+	/**
+	 * Writer of the cells of a set of tiles, for one of several threads updating
+	 * the map at the same time. Tiles must not be shared between shards, the
+	 * bounding box and change count are kept per shard until merged.
+	 * @author ziyan
+	 *
+	 */
+	public final class Shard implements MapWriter {
+		private final byte[] owners;
+		private final byte owner;
+		private final int stride;
+		private int top, left, bottom, right;
+		private long changes;
+
+		private Shard(final byte[] owners, final byte owner) {
+			this.owners = owners;
+			this.owner = owner;
+			this.stride = tilesWide;
+			this.top = this.left = Integer.MAX_VALUE;
+			this.bottom = this.right = -1;
+		}
+
+		/**
+		 * Whether a cell belongs to this shard
+		 * @param r
+		 * @param c
+		 * @return
+		 */
+		public boolean owns(final int r, final int c) {
+			return owners[(r >> TILE_BITS) * stride + (c >> TILE_BITS)] == owner;
+		}
+
+		/**
+		 * Map the shard writes into
+		 * @return
+		 */
+		public GridMap getMap() {
+			return GridMap.this;
+		}
+
+		/**
+		 * Get data value at map coordinate
+		 * @param r
+		 * @param c
+		 * @return
+		 */
+		public byte getData(final int r, final int c) {
+			return data[r * width + c];
+		}
+
+		/**
+		 * Set data value at map coordinate, the cell must belong to this shard
+		 * @param r
+		 * @param c
+		 * @param d
+		 */
+		public void setData(final int r, final int c, byte d) {
+			if(d > INTRAVERSABLE) d = INTRAVERSABLE;
+			if(d < TRAVERSABLE) d = TRAVERSABLE;
+
+			if(r < top) top = r;
+			if(r > bottom) bottom = r;
+			if(c < left) left = c;
+			if(c > right) right = c;
+
+			final int i = r * width + c;
+			if(data[i] != d) changes++;
+			data[i] = d;
+			tileStamps[(r >> TILE_BITS) * tilesWide + (c >> TILE_BITS)] = (version | 1) + 1;
+		}
+
+		/**
+		 * Set the cells of a run of a row that belong to this shard to the same value
+		 * @param r
+		 * @param from first column
+		 * @param to last column, inclusive
+		 * @param d
+		 */
+		public void fillRow(final int r, final int from, final int to, byte d) {
+			if(from > to) return;
+			if(d > INTRAVERSABLE) d = INTRAVERSABLE;
+			if(d < TRAVERSABLE) d = TRAVERSABLE;
+			final int offset = r * width, row = (r >> TILE_BITS) * stride, stamp = (version | 1) + 1;
+			for(int tile = from >> TILE_BITS, last = to >> TILE_BITS; tile <= last; tile++) {
+				if(owners[row + tile] != owner) continue;
+				final int start = Math.max(from, tile << TILE_BITS), end = Math.min(to, ((tile + 1) << TILE_BITS) - 1);
+				if(r < top) top = r;
+				if(r > bottom) bottom = r;
+				if(start < left) left = start;
+				if(end > right) right = end;
+				for(int c = start; c <= end; c++) {
+					if(data[offset + c] == d) continue;
+					data[offset + c] = d;
+					changes++;
+				}
+				tileStamps[row + tile] = stamp;
+			}
+		}
+	}
+
+	/**
+	 * Split the tiles of the map between shards, so that the cells near any
+	 * location are spread over all of them. Not supported with a pyramid.
+	 * @param count number of shards, at most 127
+	 * @return
+	 */
+	public Shard[] split(final int count) {
+		if(pyramid != null) throw new IllegalStateException("Shards cannot maintain a pyramid");
+		if(count < 1 || count > Byte.MAX_VALUE) throw new IllegalArgumentException("Invalid number of shards: " + count);
+		// diagonal stripes of tiles
+		final byte[] owners = new byte[tilesWide * tilesHigh];
+		for(int tile = 0; tile < owners.length; tile++)
+			owners[tile] = (byte)((tile / tilesWide + tile % tilesWide) % count);
+		final Shard[] shards = new Shard[count];
+		for(int k = 0; k < count; k++)
+			shards[k] = new Shard(owners, (byte)k);
+		return shards;
+	}
+
+	/**
+	 * Fold the bounding box and change count of a shard into the map,
+	 * called by the writer once the shard threads are done
+	 * @param shard
+	 */
+	public void merge(final Shard shard) {
+		if(shard.getMap() != this) throw new IllegalArgumentException("Shard of another map");
+		if(shard.bottom >= 0) {
+			if(shard.top < top) top = shard.top;
+			if(shard.bottom > bottom) bottom = shard.bottom;
+			if(shard.left < left) left = shard.left;
+			if(shard.right > right) right = shard.right;
+		}
+		changes += shard.changes;
+		shard.top = shard.left = Integer.MAX_VALUE;
+		shard.bottom = shard.right = -1;
+		shard.changes = 0;
+	}
+
+	/**
+	 * Maintain downsampled levels of this map from now on
+	 * @param levels number of levels above the map
+	 * @return
+	 */
+	public MapPyramid enablePyramid(final int levels) {
+		if(pyramid == null || pyramid.getLevels() != levels)
+			pyramid = new MapPyramid(this, levels);
+		return pyramid;
+	}
+
+	/**
+	 * Downsampled levels of this map
+	 * @return null if not enabled
+	 */
+	public MapPyramid getPyramid() {
+		return pyramid;
+	}
+
+	/**
+	 * Start an update, readers taking a snapshot (see <code>MapSnapshot</code>)
+	 * retry while an update is in progress; the writer never waits
+	 */
+	public void beginUpdate() {
+		if((version & 1) == 0) {
+			version = version + 1;
+			// a volatile store does not order the plain data stores after it,
+			// without the fence a reader could see new data and the old version
+			VarHandle.storeStoreFence();
+		}
+	}
+
+	/**
+	 * Publish changes made by <code>setData</code> since the last call
+	 * to subscribers, called by the writer after each update
+	 */
+	public void endUpdate() {
+		published = changes;
+		version = (version | 1) + 1;
+		for(final UpdateListener listener : listeners)
+			listener.updated(this);
+	}
+
+	/**
+	 * Notified by the writer at the end of each update
+	 * @author ziyan
+	 *
+	 */
+	public interface UpdateListener {
+		/**
+		 * Called on the writer thread after an update is published, must not block
+		 * @param map
+		 */
+		public void updated(GridMap map);
+	}
+
+	/**
+	 * Notify a listener at the end of each update
+	 * @param listener
+	 */
+	public void addUpdateListener(final UpdateListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Stop notifying a listener
+	 * @param listener
+	 */
+	public void removeUpdateListener(final UpdateListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Number of cells whose value changed so far, as of the last published update
+	 * @return
+	 */
+	public long getChanges() {
+		return published;
+	}
+
+	/**
+	 * Version of the map, increases by two on each update and is odd while
+	 * an update is in progress
+	 * @return
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Copy a tile into another map of the same size
+	 * @param tile
+	 * @param dst
+	 */
+	void copyTile(final int tile, final GridMap dst) {
+		final int left = getTileLeft(tile);
+		final int length = getTileRight(tile) - left + 1;
+		for(int r = getTileTop(tile), bottom = getTileBottom(tile); r <= bottom; r++)
+			System.arraycopy(data, r * width + left, dst.data, r * width + left, length);
+	}
+
+	/**
+	 * Set a cell without clamping or tracking
+	 * @param i
+	 * @param d
+	 */
+	void setRaw(final int i, final byte d) {
+		data[i] = d;
+	}
+
+	/**
+	 * Copy bounding box and robot location into another map
+	 * @param dst
+	 */
+	void copyState(final GridMap dst) {
+		dst.top = top;
+		dst.left = left;
+		dst.bottom = bottom;
+		dst.right = right;
+		dst.x = x;
+		dst.y = y;
+		dst.yaw = yaw;
+		dst.path = path;
+	}
+
+	/**
+	 * Subscribe to changes of the map, starting from now
+	 * @return
+	 */
+	public Subscription subscribe() {
+		return new Subscription(this);
+	}
+
+	/**
+	 * Tile edge length in pixel, used to track changes
+	 * @return
+	 */
+	public int getTileSize() {
+		return TILE_SIZE;
+	}
+
+	/**
+	 * Number of tile columns
+	 * @return
+	 */
+	public int getTilesWide() {
+		return tilesWide;
+	}
+
+	/**
+	 * Number of tiles
+	 * @return
+	 */
+	public int getTileCount() {
+		return tilesWide * tilesHigh;
+	}
+
+	/**
+	 * Bounding box of a tile
+	 * @param tile
+	 * @return
+	 */
+	public int getTileTop(final int tile) {
+		return (tile / tilesWide) << TILE_BITS;
+	}
+
+	/**
+	 * Bounding box of a tile
+	 * @param tile
+	 * @return
+	 */
+	public int getTileLeft(final int tile) {
+		return (tile % tilesWide) << TILE_BITS;
+	}
+
+	/**
+	 * Bounding box of a tile (inclusive)
+	 * @param tile
+	 * @return
+	 */
+	public int getTileBottom(final int tile) {
+		return Math.min(getTileTop(tile) + TILE_SIZE, height) - 1;
+	}
+
+	/**
+	 * Bounding box of a tile (inclusive)
+	 * @param tile
+	 * @return
+	 */
+	public int getTileRight(final int tile) {
+		return Math.min(getTileLeft(tile) + TILE_SIZE, width) - 1;
+	}
+
+	/**
+	 * Version in which a tile was last changed
+	 * @param tile
+	 * @return
+	 */
+	int getTileStamp(final int tile) {
+		return tileStamps[tile];
 	}
 
 	/**
@@ -241,64 +752,22 @@ public class GridMap {
 	 * @return
 	 */
 	public GridMap getCSpace() {
-		// clone the map
 		final GridMap cspace = new GridMap(width, height, mpp);
-		for(int r = 0; r < height; r++) {
-			for(int c = 0; c < width; c++) {
-				cspace.data[r][c] = (data[r][c] == TRAVERSABLE) ? TRAVERSABLE : INTRAVERSABLE;
-			}
-		}
-
-		// distance matrix
+		final int[] clearance = getClearance();
+		final int inf = DistanceTransform.getInfinity(width, height);
 		final int buffer = (int)Math.ceil(Pioneer.RADIUS / mpp);
-		int level = INTRAVERSABLE;
-		while(level > INTRAVERSABLE - buffer) {
-			for(int r = 1; r < height - 1; r++) {
-				for(int c = 1; c < width - 1; c++) {
-					if(cspace.data[r][c] == level) {
-						if(cspace.data[r][c - 1] == TRAVERSABLE)
-							cspace.data[r][c - 1] = (byte)(level - 1);
-						if(cspace.data[r][c + 1] == TRAVERSABLE)
-							cspace.data[r][c + 1] = (byte)(level - 1);
-						if(cspace.data[r - 1][c] == TRAVERSABLE)
-							cspace.data[r - 1][c] = (byte)(level - 1);
-						if(cspace.data[r + 1][c] == TRAVERSABLE)
-							cspace.data[r + 1][c] = (byte)(level - 1);
-					}
-				}
-			}
-			level --;
-		}
-
-		// c-space generation
-		for(int r = 0; r < height; r++) {
-			for(int c = 0; c < width; c++) {
-				cspace.data[r][c] = (cspace.data[r][c] == TRAVERSABLE) ? TRAVERSABLE : INTRAVERSABLE;
+		final byte[] cdata = cspace.data;
+		Parallel.run(0, height, Parallel.grain(width, Parallel.BAND_CELLS), new Parallel.Body() {
+			public void run(final int from, final int to) {
+				for(int i = from * width, end = to * width; i < end; i++)
+					cdata[i] = cost(data[i], clearance[i], buffer, inf);
 			}
-		}
+		});
 
-		// distance matrix to provide cost for A*
-		level = INTRAVERSABLE;
-		boolean done = false;
-		while(!done) {
-			done = true;
-			for(int r = 1; r < height - 1; r++) {
-				for(int c = 1; c < width - 1; c++) {
-					if(cspace.data[r][c] == level) {
-						done = false;
-						if(cspace.data[r][c - 1] == TRAVERSABLE)
-							cspace.data[r][c - 1] = (byte)(level - 1);
-						if(cspace.data[r][c + 1] == TRAVERSABLE)
-							cspace.data[r][c + 1] = (byte)(level - 1);
-						if(cspace.data[r - 1][c] == TRAVERSABLE)
-							cspace.data[r - 1][c] = (byte)(level - 1);
-						if(cspace.data[r + 1][c] == TRAVERSABLE)
-							cspace.data[r + 1][c] = (byte)(level - 1);
-					}
-				}
-			}
-			level --;
-		}
+		// corners can not be reached from the interior of the map
+		final int[] corners = new int[] { 0, width - 1, width * (height - 1), width * height - 1 };
+		for(final int i : corners)
+			if(data[i] == TRAVERSABLE) cdata[i] = TRAVERSABLE;
 
 		// max bounding box
 		cspace.top = 0;
@@ -308,9 +777,68 @@ public class GridMap {
 		return cspace;
 	}
 
+	/**
+	 * Clearance field: manhattan distance (in pixel) of each cell to the
+	 * nearest obstacle, border cells are not considered as obstacles
+	 * @return
+	 */
+	public int[] getClearance() {
+		final boolean[] obstacle = new boolean[data.length];
+		Parallel.run(1, height - 1, Parallel.grain(width, Parallel.BAND_CELLS), new Parallel.Body() {
+			public void run(final int from, final int to) {
+				for(int r = from; r < to; r++)
+					for(int i = r * width + 1, end = r * width + width - 1; i < end; i++)
+						obstacle[i] = data[i] != TRAVERSABLE;
+			}
+		});
+		return DistanceTransform.manhattan(obstacle, width, height);
+	}
+
+	/**
+	 * C-space value of a cell: intraversable within the robot radius (buffer),
+	 * otherwise decreasing with distance to provide cost for A*
+	 * @param value original value
+	 * @param clearance distance to the nearest obstacle
+	 * @param buffer robot radius (in pixel)
+	 * @param inf distance used for no obstacle
+	 * @return
+	 */
+	static byte cost(final byte value, final int clearance, final int buffer, final int inf) {
+		if(value != TRAVERSABLE || clearance <= buffer) return INTRAVERSABLE;
+		if(clearance >= inf) return TRAVERSABLE;
+		final int level = INTRAVERSABLE - (clearance - buffer);
+		return level < TRAVERSABLE ? TRAVERSABLE : (byte)level;
+	}
+
+
+	/**
+	 * Load grid map from a raw file, dimensions and resolution are read from
+	 * a sidecar properties file named <code>filename + ".info"</code>
+	 * (keys: width, height, mpp)
+	 * @param filename
+	 * @return
+	 * @throws IOException
+	 */
+	public static GridMap loadFromRaw(final String filename) throws IOException {
+		final Properties info = new Properties();
+		final FileInputStream in = new FileInputStream(filename + INFO_SUFFIX);
+		try {
+			info.load(in);
+		} finally {
+			in.close();
+		}
+		try {
+			return loadFromRaw(Integer.parseInt(info.getProperty("width", "").trim()),
+					Integer.parseInt(info.getProperty("height", "").trim()),
+					Double.parseDouble(info.getProperty("mpp", "").trim()),
+					filename);
+		} catch(final NumberFormatException e) {
+			throw new IOException("Invalid map info: " + filename + INFO_SUFFIX);
+		}
+	}
 
 	/**
-	 * Load grid map from a raw file
+	 * Load grid map from a raw file (one byte per pixel, zero is traversable)
 	 * @param width
 	 * @param height
 	 * @param mpp
@@ -319,43 +847,120 @@ public class GridMap {
 	 * @throws IOException
 	 */
 	public static GridMap loadFromRaw(final int width, final int height, final double mpp, final String filename) throws IOException {
-		final FileInputStream in = new FileInputStream(filename);
 		final GridMap map = new GridMap(width, height, mpp);
-		final byte[] buffer = new byte[102400];
-		int r = 0, c = 0, read, i;
-		while(r < height) {
-			read = in.read(buffer, 0, buffer.length);
-			if(read < 0) throw new IOException();
-			for(i = 0; i < read; i++) {
-				map.data[r][c] = buffer[i] == 0 ? TRAVERSABLE : INTRAVERSABLE;
-				c++;
-				if(c >= width) {
-					c = 0;
-					r++;
-				}
-			}
+		final FileChannel channel = new FileInputStream(filename).getChannel();
+		final MappedByteBuffer raw;
+		try {
+			if(channel.size() < map.data.length) throw new IOException("Raw map is too small: " + filename);
+			raw = channel.map(FileChannel.MapMode.READ_ONLY, 0, map.data.length);
+		} finally {
+			channel.close();
 		}
+
+		// decode straight out of the mapping, band by band
+		final byte[] data = map.data;
+		Parallel.run(0, height, Parallel.grain(width, Parallel.BAND_CELLS), new Parallel.Body() {
+			public void run(final int from, final int to) {
+				final ByteBuffer band = raw.duplicate();
+				band.position(from * width);
+				band.get(data, from * width, (to - from) * width);
+				for(int i = from * width, end = to * width; i < end; i++)
+					data[i] = data[i] == 0 ? TRAVERSABLE : INTRAVERSABLE;
+			}
+		});
 		return map;
 	}
 
 	/**
-	 * Save grid map to a PPM
+	 * Save grid map to a PPM (binary graymap)
 	 * @param map
 	 * @param filename
 	 * @throws IOException
 	 */
 	public static void saveAsPPM(final GridMap map, final String filename) throws IOException {
-		final PrintStream out = new PrintStream(new FileOutputStream(filename));
-		out.println("P2");
-		out.println("# Created by the awesome MRP project");
-		out.println("" + map.width + " " + map.height);
-		out.println("255");
-		for(int r = 0; r < map.height; r++)
-			for(int c = 0; c < map.width; c++)
-				out.print("" + (128 - map.data[r][c]) + " ");
-		out.println();
-		out.flush();
-		out.close();
+		final OutputStream out = new BufferedOutputStream(new FileOutputStream(filename), IO_BUFFER);
+		try {
+			out.write(("P5\n# Created by the awesome MRP project\n" + map.width + " " + map.height + "\n255\n").getBytes("US-ASCII"));
+			final byte[] row = new byte[map.width];
+			for(int r = 0, i = 0; r < map.height; r++) {
+				for(int c = 0; c < map.width; c++, i++)
+					row[c] = (byte)(128 - map.data[i]);
+				out.write(row);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Save grid map as a snapshot (dimensions, resolution, robot pose,
+	 * bounding box and data), see <code>loadSnapshot</code>
+	 * @param map
+	 * @param filename
+	 * @param compress deflate the map data
+	 * @throws IOException
+	 */
+	public static void saveSnapshot(final GridMap map, final String filename, final boolean compress) throws IOException {
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename), IO_BUFFER));
+		try {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeByte(SNAPSHOT_VERSION);
+			out.writeByte(compress ? SNAPSHOT_DEFLATE : 0);
+			out.writeInt(map.width);
+			out.writeInt(map.height);
+			out.writeDouble(map.mpp);
+			out.writeDouble(map.x);
+			out.writeDouble(map.y);
+			out.writeDouble(map.yaw);
+			out.writeInt(map.top);
+			out.writeInt(map.left);
+			out.writeInt(map.bottom);
+			out.writeInt(map.right);
+			if(compress) {
+				final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+				final DeflaterOutputStream zout = new DeflaterOutputStream(out, deflater, IO_BUFFER);
+				zout.write(map.data);
+				zout.finish();
+				deflater.end();
+			} else {
+				out.write(map.data);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Load grid map from a snapshot, see <code>saveSnapshot</code>
+	 * @param filename
+	 * @return
+	 * @throws IOException
+	 */
+	public static GridMap loadSnapshot(final String filename) throws IOException {
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), IO_BUFFER));
+		try {
+			if(in.readInt() != SNAPSHOT_MAGIC) throw new IOException("Not a map snapshot: " + filename);
+			if(in.readByte() != SNAPSHOT_VERSION) throw new IOException("Unsupported map snapshot version: " + filename);
+			final int flags = in.readByte();
+			final GridMap map = new GridMap(in.readInt(), in.readInt(), in.readDouble());
+			map.x = in.readDouble();
+			map.y = in.readDouble();
+			map.yaw = in.readDouble();
+			map.top = in.readInt();
+			map.left = in.readInt();
+			map.bottom = in.readInt();
+			map.right = in.readInt();
+			if((flags & SNAPSHOT_DEFLATE) != 0) {
+				final Inflater inflater = new Inflater();
+				new DataInputStream(new InflaterInputStream(in, inflater, IO_BUFFER)).readFully(map.data);
+				inflater.end();
+			} else {
+				in.readFully(map.data);
+			}
+			return map;
+		} finally {
+			in.close();
+		}
 	}
 
 	/**
@@ -367,24 +972,18 @@ public class GridMap {
 	 */
 	public static double diff(final GridMap floorplan, final GridMap map, final Position position) {
 		if(!map.isSufficient()) return 0.0;
-		int count = 0;
-		int diff = 0;
-		double x, y, a, t;
-		int fr, fc;
-		for(int r = map.top; r <= map.bottom; r++) {
-			for(int c = map.left; c <= map.right; c++) {
-				if(map.data[r][c] == 0) continue;
-				x = map.mpp * (c - map.width / 2);
-				y = map.mpp * ((map.height - r) - map.height / 2);
-				a = Utils.normalize(Math.atan2(y, x) + position.getYaw());
-				t = Utils.elength(x, y);
-				fc = (int)((position.getX() + t * Math.cos(a)) / floorplan.mpp) + floorplan.width / 2;
-				fr = floorplan.height - ((int)((position.getY() + t * Math.sin(a)) / floorplan.mpp) + floorplan.height / 2);
-				if(fc < 0 || fr < 0 || fc >= floorplan.width || fr >= floorplan.height) continue;
-				count++;
-				diff += Math.abs(map.data[r][c] - floorplan.data[fr][fc]);
-			}
-		}
+		final int[] result = new int[2];
+		new MapProjection(floorplan, map, position).compare(map.top, map.left, map.bottom, map.right, result);
+		return score(result[0], result[1]);
+	}
+
+	/**
+	 * Score from the number of compared cells and the sum of their absolute differences
+	 * @param count
+	 * @param diff
+	 * @return
+	 */
+	public static double score(final int count, final int diff) {
 		if(count < DIFF_MIN_AREA) return 0.0;
 		return (1.0 - (double)diff / ((double)count * (double)(INTRAVERSABLE - TRAVERSABLE))) * Math.exp(-(double)DIFF_ADEQUATE_AREA / (double)count);
 	}
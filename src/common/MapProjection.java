@@ -0,0 +1,92 @@
+/**
+ *
+ */
+
+package common;
+
+/**
+ * Projection of local map cells onto the floorplan for a candidate start
+ * position, a rigid 2-D transform evaluated without trigonometry per cell
+ * @author ziyan
+ *
+ */
+public class MapProjection {
+	private final GridMap floorplan;
+	private final GridMap map;
+	private final double x, y, cos, sin;
+
+	/**
+	 * Projection of a local map onto a floorplan
+	 * @param floorplan
+	 * @param map
+	 * @param position candidate start position of the local map in the floorplan
+	 */
+	public MapProjection(final GridMap floorplan, final GridMap map, final Position position) {
+		this.floorplan = floorplan;
+		this.map = map;
+		this.x = position.getX();
+		this.y = position.getY();
+		this.cos = Math.cos(position.getYaw());
+		this.sin = Math.sin(position.getYaw());
+	}
+
+	/**
+	 * Floorplan index a local map cell projects onto
+	 * @param r
+	 * @param c
+	 * @return -1 if outside of the floorplan
+	 */
+	public int project(final int r, final int c) {
+		// same arithmetic as compare, so both agree on every cell
+		final double mpp = map.getMPP(), fmpp = floorplan.getMPP();
+		final int fw = floorplan.getWidth(), fh = floorplan.getHeight();
+		final double my = mpp * ((map.getHeight() - map.getHeight() / 2) - r);
+		final int k = c - map.getWidth() / 2;
+		final int fc = (int)(((x - my * sin) + k * (mpp * cos)) / fmpp) + fw / 2;
+		final int fr = (fh - fh / 2) - (int)(((y + my * cos) + k * (mpp * sin)) / fmpp);
+		if(fc < 0 || fr < 0 || fc >= fw || fr >= fh) return -1;
+		return fr * fw + fc;
+	}
+
+	/**
+	 * Floorplan the map is projected onto
+	 * @return
+	 */
+	public GridMap getFloorplan() {
+		return floorplan;
+	}
+
+	/**
+	 * Compare known cells of a bounding box of the local map with the floorplan
+	 * @param top
+	 * @param left
+	 * @param bottom
+	 * @param right
+	 * @param result adds number of compared cells to [0] and sum of absolute differences to [1]
+	 */
+	public void compare(final int top, final int left, final int bottom, final int right, final int[] result) {
+		final double mpp = map.getMPP(), fmpp = floorplan.getMPP();
+		final int fw = floorplan.getWidth(), fh = floorplan.getHeight();
+		final int cx = map.getWidth() / 2, cy = map.getHeight() - map.getHeight() / 2;
+		final int fcx = fw / 2, fcy = fh - fh / 2;
+		// moving one column right moves (dx, dy) meters in the floorplan
+		final double dx = mpp * cos, dy = mpp * sin;
+		int count = 0, diff = 0;
+		for(int r = top; r <= bottom; r++) {
+			final double my = mpp * (cy - r);
+			final double px = x - my * sin, py = y + my * cos;
+			for(int c = left, i = map.getIndex(r, left); c <= right; c++, i++) {
+				final byte value = map.getData(i);
+				if(value == 0) continue;
+				final int k = c - cx;
+				final int fc = (int)((px + k * dx) / fmpp) + fcx;
+				final int fr = fcy - (int)((py + k * dy) / fmpp);
+				if(fc < 0 || fr < 0 || fc >= fw || fr >= fh) continue;
+				count++;
+				diff += Math.abs(value - floorplan.getData(fr * fw + fc));
+			}
+		}
+		result[0] += count;
+		result[1] += diff;
+	}
+}
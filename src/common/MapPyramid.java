@@ -0,0 +1,153 @@
+/**
+ *
+ */
+
+package common;
+
+/**
+ * Downsampled levels of a grid map, level k covers 2^k by 2^k cells of the
+ * map (level 0 is the map itself). Each level keeps the maximum (for
+ * safety, e.g. planning) and the mean (for scoring) of the covered cells,
+ * and is updated incrementally by <code>GridMap.setData</code>.
+ * @author ziyan
+ *
+ */
+public class MapPyramid {
+	private final GridMap map;
+	private final int levels;
+	private final int[] widths, heights;
+	private final byte[][] max;
+	private final int[][] sum;
+
+	/**
+	 * Build the pyramid of a map
+	 * @param map
+	 * @param levels number of levels above the map
+	 */
+	MapPyramid(final GridMap map, final int levels) {
+		this.map = map;
+		this.levels = levels;
+		this.widths = new int[levels + 1];
+		this.heights = new int[levels + 1];
+		this.max = new byte[levels + 1][];
+		this.sum = new int[levels + 1][];
+		widths[0] = map.getWidth();
+		heights[0] = map.getHeight();
+		for(int k = 1; k <= levels; k++) {
+			widths[k] = (widths[k - 1] + 1) >> 1;
+			heights[k] = (heights[k - 1] + 1) >> 1;
+			max[k] = new byte[widths[k] * heights[k]];
+			sum[k] = new int[widths[k] * heights[k]];
+		}
+		rebuild();
+	}
+
+	/**
+	 * Recompute every level from the map
+	 */
+	public void rebuild() {
+		for(int k = 1; k <= levels; k++) {
+			final int w = widths[k], h = heights[k];
+			for(int r = 0; r < h; r++)
+				for(int c = 0; c < w; c++) {
+					byte m = Byte.MIN_VALUE;
+					int s = 0;
+					for(int rr = r << 1; rr <= (r << 1) + 1 && rr < heights[k - 1]; rr++)
+						for(int cc = c << 1; cc <= (c << 1) + 1 && cc < widths[k - 1]; cc++) {
+							final byte v = getMax(k - 1, rr, cc);
+							if(v > m) m = v;
+							s += k == 1 ? v : sum[k - 1][rr * widths[k - 1] + cc];
+						}
+					max[k][r * w + c] = m;
+					sum[k][r * w + c] = s;
+				}
+		}
+	}
+
+	/**
+	 * Number of levels above the map
+	 * @return
+	 */
+	public int getLevels() {
+		return levels;
+	}
+
+	/**
+	 * Width of a level in cells
+	 * @param level
+	 * @return
+	 */
+	public int getWidth(final int level) {
+		return widths[level];
+	}
+
+	/**
+	 * Height of a level in cells
+	 * @param level
+	 * @return
+	 */
+	public int getHeight(final int level) {
+		return heights[level];
+	}
+
+	/**
+	 * Maximum value of the map cells covered by a cell of a level
+	 * @param level
+	 * @param r
+	 * @param c
+	 * @return
+	 */
+	public byte getMax(final int level, final int r, final int c) {
+		if(level == 0) return map.getData(r, c);
+		return max[level][r * widths[level] + c];
+	}
+
+	/**
+	 * Mean value of the map cells covered by a cell of a level
+	 * @param level
+	 * @param r
+	 * @param c
+	 * @return
+	 */
+	public double getMean(final int level, final int r, final int c) {
+		if(level == 0) return map.getData(r, c);
+		final int top = r << level, left = c << level;
+		final int rows = Math.min(top + (1 << level), heights[0]) - top;
+		final int cols = Math.min(left + (1 << level), widths[0]) - left;
+		return (double)sum[level][r * widths[level] + c] / (double)(rows * cols);
+	}
+
+	/**
+	 * Propagate a change of a map cell to every level
+	 * @param r
+	 * @param c
+	 * @param before previous value
+	 * @param after new value
+	 */
+	void update(int r, int c, final byte before, final byte after) {
+		if(before == after) return;
+		final int delta = after - before;
+		boolean propagate = true;
+		for(int k = 1; k <= levels; k++) {
+			r >>= 1;
+			c >>= 1;
+			final int i = r * widths[k] + c;
+			sum[k][i] += delta;
+			if(!propagate) continue;
+			final byte old = max[k][i];
+			if(after >= old) {
+				max[k][i] = after;
+			} else if(before == old) {
+				// the maximum may have been removed, recompute from the level below
+				byte m = Byte.MIN_VALUE;
+				for(int rr = r << 1; rr <= (r << 1) + 1 && rr < heights[k - 1]; rr++)
+					for(int cc = c << 1; cc <= (c << 1) + 1 && cc < widths[k - 1]; cc++) {
+						final byte v = getMax(k - 1, rr, cc);
+						if(v > m) m = v;
+					}
+				max[k][i] = m;
+			}
+			propagate = max[k][i] != old;
+		}
+	}
+}
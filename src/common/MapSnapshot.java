@@ -0,0 +1,151 @@
+/**
+ *
+ */
+
+package common;
+
+import java.lang.invoke.VarHandle;
+
+/**
+ * Consistent private copy of a live grid map. Refreshing copies only the
+ * tiles changed since the last refresh and retries (seqlock style) if the
+ * writer updated the map meanwhile, so the writer is never blocked and the
+ * whole map is only copied once.
+ * @author ziyan
+ *
+ */
+public class MapSnapshot {
+	private final GridMap live;
+	private final GridMap view;
+	private final int[] tiles;
+	private int count;
+	private int since;
+
+	/**
+	 * Snapshot of a live map, empty until the first refresh
+	 * @param live
+	 */
+	public MapSnapshot(final GridMap live) {
+		this.live = live;
+		this.view = new GridMap(live.getWidth(), live.getHeight(), live.getMPP());
+		this.tiles = new int[live.getTileCount()];
+		this.count = 0;
+		this.since = -2;
+	}
+
+	/**
+	 * Copy of the map as of the last refresh, must not be modified
+	 * @return
+	 */
+	public GridMap getMap() {
+		return view;
+	}
+
+	/**
+	 * Version of the live map captured by the last refresh
+	 * @return
+	 */
+	public int getVersion() {
+		return since;
+	}
+
+	/**
+	 * Receives every cell of the copy that changes during a refresh
+	 * @author ziyan
+	 *
+	 */
+	public interface Listener {
+		/**
+		 * A cell of the copy changed; if a refresh has to be retried a cell
+		 * may be reported more than once, but the reported changes always
+		 * add up to the difference between the old and the new copy
+		 * @param r
+		 * @param c
+		 * @param before
+		 * @param after
+		 */
+		public void changed(int r, int c, byte before, byte after);
+	}
+
+	/**
+	 * Bring the copy up to date with the last completed update of the live map
+	 * @return number of tiles that changed
+	 */
+	public int refresh() {
+		return refresh(null);
+	}
+
+	/**
+	 * Bring the copy up to date with the last completed update of the live map
+	 * @param listener notified of every changed cell, may be null
+	 * @return number of tiles that changed
+	 */
+	public int refresh(final Listener listener) {
+		while(true) {
+			final int version = live.getVersion();
+			if((version & 1) != 0) {
+				// update in progress
+				Thread.onSpinWait();
+				continue;
+			}
+			if(version == since) {
+				count = 0;
+				return 0;
+			}
+
+			count = 0;
+			for(int t = 0, n = live.getTileCount(); t < n; t++) {
+				final int stamp = live.getTileStamp(t);
+				if(stamp > since && stamp <= version) {
+					tiles[count++] = t;
+					if(listener == null)
+						live.copyTile(t, view);
+					else
+						copyTile(t, listener);
+				}
+			}
+			live.copyState(view);
+
+			// keep the copy only if no update started meanwhile
+			VarHandle.acquireFence();
+			if(live.getVersion() == version) {
+				since = version;
+				return count;
+			}
+		}
+	}
+
+	/**
+	 * Copy a tile cell by cell, reporting changes
+	 * @param tile
+	 * @param listener
+	 */
+	private void copyTile(final int tile, final Listener listener) {
+		final int left = live.getTileLeft(tile), right = live.getTileRight(tile);
+		for(int r = live.getTileTop(tile), bottom = live.getTileBottom(tile); r <= bottom; r++) {
+			for(int c = left, i = live.getIndex(r, left); c <= right; c++, i++) {
+				final byte after = live.getData(i);
+				final byte before = view.getData(i);
+				if(before == after) continue;
+				view.setRaw(i, after);
+				listener.changed(r, c, before, after);
+			}
+		}
+	}
+
+	/**
+	 * Tiles changed by the last refresh
+	 * @return
+	 */
+	public int[] getChangedTiles() {
+		return tiles;
+	}
+
+	/**
+	 * Number of tiles changed by the last refresh
+	 * @return
+	 */
+	public int getChangedCount() {
+		return count;
+	}
+}
@@ -0,0 +1,52 @@
+/**
+ *
+ */
+
+package common;
+
+/**
+ * Cell updates of a sensor model, written either into the whole map by
+ * the writer thread or into the tiles of one shard
+ * @author ziyan
+ *
+ */
+public interface MapWriter {
+	/**
+	 * Map the cells belong to
+	 * @return
+	 */
+	public GridMap getMap();
+
+	/**
+	 * Whether a cell may be written, cells that are not are skipped by the caller
+	 * @param r
+	 * @param c
+	 * @return
+	 */
+	public boolean owns(int r, int c);
+
+	/**
+	 * Get data value at map coordinate
+	 * @param r
+	 * @param c
+	 * @return
+	 */
+	public byte getData(int r, int c);
+
+	/**
+	 * Set data value at map coordinate, the cell must be owned
+	 * @param r
+	 * @param c
+	 * @param d
+	 */
+	public void setData(int r, int c, byte d);
+
+	/**
+	 * Set the owned cells of a run of a row to the same value
+	 * @param r
+	 * @param from first column
+	 * @param to last column, inclusive
+	 * @param d
+	 */
+	public void fillRow(int r, int from, int to, byte d);
+}
@@ -0,0 +1,100 @@
+/**
+ *
+ */
+
+package common;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Split a range of rows (or columns) into bands processed on the shared fork/join pool
+ * @author ziyan
+ *
+ */
+public class Parallel {
+	/**
+	 * Number of cells handled by one parallel band, see <code>grain</code>
+	 */
+	public static final int BAND_CELLS = 1 << 16;
+
+	/**
+	 * Work on a band of the range
+	 * @author ziyan
+	 *
+	 */
+	public interface Body {
+		/**
+		 * Process [from, to)
+		 * @param from
+		 * @param to
+		 */
+		public void run(int from, int to);
+	}
+
+	/**
+	 * Shared pool used by map processing
+	 * @return
+	 */
+	public static ForkJoinPool getPool() {
+		return ForkJoinPool.commonPool();
+	}
+
+	/**
+	 * Process [from, to) in bands of at least <code>grain</code> items,
+	 * returns after all bands are done
+	 * @param from
+	 * @param to
+	 * @param grain
+	 * @param body
+	 */
+	public static void run(final int from, final int to, final int grain, final Body body) {
+		if(to - from <= grain || getPool().getParallelism() <= 1) {
+			body.run(from, to);
+			return;
+		}
+		getPool().invoke(new Band(from, to, Math.max(grain, 1), body));
+	}
+
+	/**
+	 * Grain so that each band holds about <code>cells</code> cells
+	 * @param length cells per item (row or column length)
+	 * @param cells
+	 * @return
+	 */
+	public static int grain(final int length, final int cells) {
+		return Math.max(1, cells / Math.max(1, length));
+	}
+
+	/**
+	 * Recursive band splitting
+	 * @author ziyan
+	 *
+	 */
+	private static class Band extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final int from, to, grain;
+		private final Body body;
+
+		public Band(final int from, final int to, final int grain, final Body body) {
+			this.from = from;
+			this.to = to;
+			this.grain = grain;
+			this.body = body;
+		}
+
+		/*
+		 * (non-Javadoc)
+		 * @see java.util.concurrent.RecursiveAction#compute()
+		 */
+		@Override
+		protected void compute() {
+			if(to - from <= grain) {
+				body.run(from, to);
+				return;
+			}
+			final int mid = (from + to) >>> 1;
+			invokeAll(new Band(from, mid, grain, body), new Band(mid, to, grain, body));
+		}
+	}
+}
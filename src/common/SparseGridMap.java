@@ -0,0 +1,284 @@
+/**
+ *
+ */
+
+package common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Unbounded grid map made of fixed size chunks, a chunk is allocated on the
+ * first write and least recently used chunks are spilled to a local file
+ * when too many are resident. Coordinates are relative to the origin of the
+ * player coordinate system and may be negative.
+ * This is only a storage building block: the mapper, the sensor models and
+ * the localizer still work on the fixed size <code>GridMap</code>, so it
+ * does not lower their memory use yet.
+ * Not thread-safe.
+ * @author ziyan
+ *
+ */
+public class SparseGridMap {
+	/**
+	 * Chunk edge length is 2 to the power of this
+	 */
+	public static final int CHUNK_BITS = 6;
+
+	/**
+	 * Chunk edge length in pixel
+	 */
+	public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	private static final int CHUNK_CELLS = CHUNK_SIZE * CHUNK_SIZE;
+
+	private final double mpp;
+	private final int maxResident;
+	private final LinkedHashMap<Long, byte[]> resident;
+	private final Map<Long, Long> spilled;
+	private RandomAccessFile spill;
+	private File spillFile;
+	private long spillSize;
+	private int top, left, bottom, right;
+	private boolean empty;
+
+	// last chunk accessed
+	private long lastKey;
+	private byte[] lastChunk;
+
+	/**
+	 * Sparse grid map
+	 * @param mpp resolution (meter per pixel)
+	 * @param maxResident maximum number of chunks kept in memory
+	 */
+	public SparseGridMap(final double mpp, final int maxResident) {
+		if(maxResident < 1) throw new IllegalArgumentException("At least one chunk must be resident");
+		this.mpp = mpp;
+		this.maxResident = maxResident;
+		this.resident = new LinkedHashMap<Long, byte[]>(16, 0.75f, true);
+		this.spilled = new HashMap<Long, Long>();
+		this.empty = true;
+		this.lastKey = Long.MIN_VALUE;
+	}
+
+	/**
+	 * Resolution (meter per pixel)
+	 * @return
+	 */
+	public double getMPP() {
+		return mpp;
+	}
+
+	/**
+	 * Convert player coordinate to map coordinate
+	 * @param y
+	 * @return
+	 */
+	public int getRow(final double y) {
+		return -(int)(y / mpp);
+	}
+
+	/**
+	 * Convert player coordinate to map coordinate
+	 * @param x
+	 * @return
+	 */
+	public int getCol(final double x) {
+		return (int)(x / mpp);
+	}
+
+	/**
+	 * Get data value at map coordinate, unexplored cells are 0
+	 * @param r
+	 * @param c
+	 * @return
+	 */
+	public byte getData(final int r, final int c) {
+		final byte[] chunk = chunk(key(r, c), false);
+		return chunk == null ? 0 : chunk[((r & CHUNK_MASK) << CHUNK_BITS) | (c & CHUNK_MASK)];
+	}
+
+	/**
+	 * Set data value at map coordinate
+	 * @param r
+	 * @param c
+	 * @param d
+	 */
+	public void setData(final int r, final int c, byte d) {
+		if(d > GridMap.INTRAVERSABLE) d = GridMap.INTRAVERSABLE;
+		if(d < GridMap.TRAVERSABLE) d = GridMap.TRAVERSABLE;
+
+		// keep track of a boundary
+		if(empty) {
+			top = bottom = r;
+			left = right = c;
+			empty = false;
+		}
+		if(r < top) top = r;
+		if(r > bottom) bottom = r;
+		if(c < left) left = c;
+		if(c > right) right = c;
+
+		chunk(key(r, c), true)[((r & CHUNK_MASK) << CHUNK_BITS) | (c & CHUNK_MASK)] = d;
+	}
+
+	/**
+	 * Bounding box
+	 * @return
+	 */
+	public int getTop() {
+		return top;
+	}
+
+	/**
+	 * Bounding box
+	 * @return
+	 */
+	public int getLeft() {
+		return left;
+	}
+
+	/**
+	 * Bounding box
+	 * @return
+	 */
+	public int getBottom() {
+		return bottom;
+	}
+
+	/**
+	 * Bounding box
+	 * @return
+	 */
+	public int getRight() {
+		return right;
+	}
+
+	/**
+	 * Number of chunks currently in memory
+	 * @return
+	 */
+	public int getResidentChunks() {
+		return resident.size();
+	}
+
+	/**
+	 * Number of chunks ever written
+	 * @return
+	 */
+	public int getChunks() {
+		int count = resident.size();
+		for(final Long key : spilled.keySet())
+			if(!resident.containsKey(key)) count++;
+		return count;
+	}
+
+	/**
+	 * Copy the explored area into a fixed size grid map centered on the origin,
+	 * so it can be used by the viewer and the localizer. The copy is dense,
+	 * it costs as much memory as a grid map of the explored area.
+	 * @return
+	 */
+	public GridMap toGridMap() {
+		final int width = 2 * Math.max(Math.abs(left), Math.abs(right) + 1);
+		final int height = 2 * Math.max(Math.abs(top) + 1, Math.abs(bottom) + 1);
+		final GridMap map = new GridMap(width, height, mpp);
+		if(empty) return map;
+		final int dr = height - height / 2, dc = width / 2;
+		for(int r = top; r <= bottom; r++)
+			for(int c = left; c <= right; c++) {
+				final byte d = getData(r, c);
+				if(d != 0) map.setData(r + dr, c + dc, d);
+			}
+		return map;
+	}
+
+	/**
+	 * Release the spill file
+	 */
+	public void close() {
+		try {
+			if(spill != null) spill.close();
+		} catch(final IOException e) { }
+		if(spillFile != null) spillFile.delete();
+		spill = null;
+		spillFile = null;
+	}
+
+	private static long key(final int r, final int c) {
+		return ((long)(r >> CHUNK_BITS) << 32) | ((c >> CHUNK_BITS) & 0xffffffffL);
+	}
+
+	/**
+	 * Find a chunk, loading it back from the spill file if necessary
+	 * @param key
+	 * @param create allocate the chunk if it was never written
+	 * @return
+	 */
+	private byte[] chunk(final long key, final boolean create) {
+		if(key == lastKey) return lastChunk;
+		byte[] chunk = resident.get(key);
+		if(chunk == null) {
+			final Long offset = spilled.get(key);
+			if(offset == null && !create) return null;
+			chunk = new byte[CHUNK_CELLS];
+			if(offset != null) read(offset, chunk);
+			resident.put(key, chunk);
+			evict();
+		}
+		lastKey = key;
+		lastChunk = chunk;
+		return chunk;
+	}
+
+	/**
+	 * Spill least recently used chunks
+	 */
+	private void evict() {
+		final Iterator<Map.Entry<Long, byte[]>> it = resident.entrySet().iterator();
+		while(resident.size() > maxResident && it.hasNext()) {
+			final Map.Entry<Long, byte[]> entry = it.next();
+			Long offset = spilled.get(entry.getKey());
+			if(offset == null) {
+				offset = spillSize;
+				spillSize += CHUNK_CELLS;
+				spilled.put(entry.getKey(), offset);
+			}
+			write(offset, entry.getValue());
+			it.remove();
+			if(entry.getKey() == lastKey) {
+				lastKey = Long.MIN_VALUE;
+				lastChunk = null;
+			}
+		}
+	}
+
+	private void read(final long offset, final byte[] chunk) {
+		try {
+			spill.seek(offset);
+			spill.readFully(chunk);
+		} catch(final IOException e) {
+			throw new IllegalStateException("Failed to read spilled chunk", e);
+		}
+	}
+
+	private void write(final long offset, final byte[] chunk) {
+		try {
+			if(spill == null) {
+				spillFile = File.createTempFile("gridmap", ".spill");
+				spillFile.deleteOnExit();
+				spill = new RandomAccessFile(spillFile, "rw");
+			}
+			spill.seek(offset);
+			spill.write(chunk);
+		} catch(final IOException e) {
+			throw new IllegalStateException("Failed to spill chunk", e);
+		}
+	}
+}
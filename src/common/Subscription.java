@@ -0,0 +1,50 @@
+/**
+ *
+ */
+
+package common;
+
+/**
+ * Tracks which tiles of a grid map changed since the subscriber last looked
+ * @author ziyan
+ *
+ */
+public class Subscription {
+	private final GridMap map;
+	private int since;
+
+	/**
+	 * Subscription to the changes of a map
+	 * @param map
+	 */
+	Subscription(final GridMap map) {
+		this.map = map;
+		this.since = map.getVersion() & ~1;
+	}
+
+	/**
+	 * Map being watched
+	 * @return
+	 */
+	public GridMap getMap() {
+		return map;
+	}
+
+	/**
+	 * Collect tiles changed since the last drain
+	 * @param tiles buffer of at least <code>getTileCount()</code> tile indices
+	 * @return number of tiles written into the buffer
+	 */
+	public int drain(final int[] tiles) {
+		// changes of an update in progress are picked up next time
+		final int version = map.getVersion() & ~1;
+		int count = 0;
+		if(version == since) return 0;
+		for(int t = 0, n = map.getTileCount(); t < n; t++) {
+			final int stamp = map.getTileStamp(t);
+			if(stamp > since && stamp <= version) tiles[count++] = t;
+		}
+		since = version;
+		return count;
+	}
+}
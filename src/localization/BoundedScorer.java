@@ -0,0 +1,186 @@
+/**
+ *
+ */
+
+package localization;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import common.GridMap;
+import common.MapProjection;
+import common.Parallel;
+import common.Position;
+
+/**
+ * Branch and bound scoring of candidates against a local map. The map is
+ * compared row by row, after each row the best score the candidate could
+ * still reach (every remaining known cell matching perfectly) is checked
+ * against the best score found so far and the candidate is abandoned as soon
+ * as it cannot win. The winner is always scored exactly, abandoned
+ * candidates keep the upper bound they were abandoned with.
+ * @author ziyan
+ *
+ */
+public class BoundedScorer {
+	private final GridMap local;
+	private final MapProjection[] projections;
+	private final double[] scores;
+	private final int[] counts;
+	private final boolean[] pruned;
+	private final Integer[] order;
+	private long visited, skipped;
+	private int abandoned;
+
+	/**
+	 * Bounded scorer
+	 * @param floorplan
+	 * @param local snapshot of the local map the candidates are scored against
+	 * @param candidates
+	 */
+	public BoundedScorer(final GridMap floorplan, final GridMap local, final Position[] candidates) {
+		this.local = local;
+		this.projections = new MapProjection[candidates.length];
+		this.scores = new double[candidates.length];
+		this.counts = new int[candidates.length];
+		this.pruned = new boolean[candidates.length];
+		this.order = new Integer[candidates.length];
+		for(int k = 0; k < candidates.length; k++) {
+			projections[k] = new MapProjection(floorplan, local, candidates[k]);
+			order[k] = k;
+		}
+	}
+
+	/**
+	 * Score all candidates against the current content of the local map,
+	 * the previous winners are scored first so the bound is tight early
+	 */
+	public void score() {
+		visited = skipped = 0;
+		abandoned = 0;
+		if(!local.isSufficient()) {
+			Arrays.fill(scores, 0.0);
+			Arrays.fill(counts, 0);
+			Arrays.fill(pruned, false);
+			return;
+		}
+		final int top = local.getTop(), left = local.getLeft();
+		final int bottom = local.getBottom(), right = local.getRight();
+		final int width = right - left + 1;
+
+		// remaining[r - top] is the number of known cells in rows r to bottom
+		final int[] remaining = new int[bottom - top + 2];
+		Parallel.run(top, bottom + 1, Parallel.grain(width, Parallel.BAND_CELLS), new Parallel.Body() {
+			public void run(final int from, final int to) {
+				for(int r = from; r < to; r++) {
+					int known = 0;
+					for(int i = local.getIndex(r, left), end = i + width; i < end; i++)
+						if(local.getData(i) != 0) known++;
+					remaining[r - top] = known;
+				}
+			}
+		});
+		for(int r = bottom - top - 1; r >= 0; r--)
+			remaining[r] += remaining[r + 1];
+
+		// best exact score so far, scores are never negative so the bits order like the values
+		final AtomicLong best = new AtomicLong(Double.doubleToLongBits(0.0));
+		final AtomicLong visitedRows = new AtomicLong(), skippedRows = new AtomicLong();
+		Parallel.run(0, order.length, 1, new Parallel.Body() {
+			public void run(final int from, final int to) {
+				final int[] result = new int[2];
+				long v = 0, s = 0;
+				for(int j = from; j < to; j++) {
+					final int k = order[j];
+					result[0] = result[1] = 0;
+					double bound = 0.0;
+					int r = top;
+					while(r <= bottom) {
+						projections[k].compare(r, left, r, right, result);
+						r++;
+						bound = GridMap.score(result[0] + remaining[r - top], result[1]);
+						if(bound < Double.longBitsToDouble(best.get())) break;
+					}
+					v += r - top;
+					s += bottom + 1 - r;
+					pruned[k] = r <= bottom;
+					counts[k] = result[0];
+					if(pruned[k]) {
+						scores[k] = bound;
+						continue;
+					}
+					scores[k] = GridMap.score(result[0], result[1]);
+					long current;
+					while(scores[k] > Double.longBitsToDouble(current = best.get()))
+						if(best.compareAndSet(current, Double.doubleToLongBits(scores[k]))) break;
+				}
+				visitedRows.addAndGet(v);
+				skippedRows.addAndGet(s);
+			}
+		});
+		visited = visitedRows.get() * width;
+		skipped = skippedRows.get() * width;
+		for(int k = 0; k < pruned.length; k++)
+			if(pruned[k]) abandoned++;
+
+		// next time start with the most promising candidates
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(final Integer a, final Integer b) {
+				return Double.compare(scores[b], scores[a]);
+			}
+		});
+	}
+
+	/**
+	 * Score of a candidate, equal to <code>GridMap.diff</code> on the snapshot
+	 * unless the candidate was pruned
+	 * @param k candidate index
+	 * @return upper bound of the score if pruned
+	 */
+	public double getScore(final int k) {
+		return scores[k];
+	}
+
+	/**
+	 * Number of cells compared for a candidate, partial if pruned
+	 * @param k candidate index
+	 * @return
+	 */
+	public int getCount(final int k) {
+		return counts[k];
+	}
+
+	/**
+	 * Whether a candidate was abandoned during the last pass
+	 * @param k candidate index
+	 * @return
+	 */
+	public boolean isPruned(final int k) {
+		return pruned[k];
+	}
+
+	/**
+	 * Number of candidates abandoned during the last pass
+	 * @return
+	 */
+	public int getPrunedCandidates() {
+		return abandoned;
+	}
+
+	/**
+	 * Number of local map cells compared during the last pass, over all candidates
+	 * @return
+	 */
+	public long getVisitedCells() {
+		return visited;
+	}
+
+	/**
+	 * Number of local map cells skipped by pruning during the last pass, over all candidates
+	 * @return
+	 */
+	public long getPrunedCells() {
+		return skipped;
+	}
+}
@@ -0,0 +1,162 @@
+/**
+ *
+ */
+
+package localization;
+
+import java.util.Arrays;
+
+import common.Pioneer;
+import common.Utils;
+
+/**
+ * Rasterized sonar cones, one per quantized absolute bearing. Each stencil
+ * lists the cells of the cone relative to the cell the sonar is in, with
+ * the angular gain of the sonar model at their bearing, so a reading is
+ * mapped without trigonometry per cell. A stencil
+ * is slightly wider than the cone so that it covers the exact cone for any
+ * position of the sonar in its cell and any bearing in its bin.
+ * Stencils are built on first use.
+ * @author ziyan
+ *
+ */
+public class ConeStencils {
+	/**
+	 * Number of bearing bins over a full turn
+	 */
+	public static final int BINS = 720;
+
+	/**
+	 * Cells of a cone
+	 * @author ziyan
+	 *
+	 */
+	static final class Stencil {
+		/**
+		 * Column and row offsets of the cells (rows grow with y, as in player coordinate)
+		 */
+		final int[] cols, rows;
+
+		/**
+		 * Angular gain of the sonar model for each cell
+		 */
+		final float[] gains;
+
+		/**
+		 * Distance of each cell from the center of the sonar cell, ascending
+		 */
+		final float[] distances;
+
+		/**
+		 * Bounding box of the offsets
+		 */
+		final int left, right, bottom, top;
+
+		Stencil(final int[] cols, final int[] rows, final float[] gains, final float[] distances) {
+			this.cols = cols;
+			this.rows = rows;
+			this.gains = gains;
+			this.distances = distances;
+			int left = 0, right = 0, bottom = 0, top = 0;
+			for(int k = 0; k < cols.length; k++) {
+				left = Math.min(left, cols[k]);
+				right = Math.max(right, cols[k]);
+				bottom = Math.min(bottom, rows[k]);
+				top = Math.max(top, rows[k]);
+			}
+			this.left = left;
+			this.right = right;
+			this.bottom = bottom;
+			this.top = top;
+		}
+
+		/**
+		 * Number of leading cells within a distance of the center of the sonar cell
+		 * @param distance
+		 * @return
+		 */
+		int count(final double distance) {
+			int low = 0, high = distances.length;
+			while(low < high) {
+				final int mid = (low + high) >>> 1;
+				if(distances[mid] <= distance) low = mid + 1;
+				else high = mid;
+			}
+			return low;
+		}
+	}
+
+	private final double mpp;
+	private final Stencil[] stencils;
+
+	/**
+	 * Cone stencils for a map resolution
+	 * @param mpp resolution (meter per pixel)
+	 */
+	public ConeStencils(final double mpp) {
+		this.mpp = mpp;
+		this.stencils = new Stencil[BINS];
+	}
+
+	/**
+	 * Resolution the stencils are built for
+	 * @return
+	 */
+	public double getMPP() {
+		return mpp;
+	}
+
+	/**
+	 * Stencil of the bin nearest to a bearing
+	 * @param bearing absolute bearing of the sonar
+	 * @return
+	 */
+	Stencil get(final double bearing) {
+		int bin = (int)Math.round(bearing / (2.0 * Math.PI) * BINS) % BINS;
+		if(bin < 0) bin += BINS;
+		// racing threads build equal stencils, either one may be kept
+		Stencil stencil = stencils[bin];
+		if(stencil == null) {
+			stencil = build(2.0 * Math.PI * bin / BINS);
+			stencils[bin] = stencil;
+		}
+		return stencil;
+	}
+
+	/**
+	 * Rasterize the cone of a bearing
+	 * @param bearing
+	 * @return
+	 */
+	private Stencil build(final double bearing) {
+		// the mapper keeps the cells of the cone inside the bounding box of its
+		// triangle, which reaches further than the triangle along a diagonal
+		final double edge = Math.sqrt(2.0) * Pioneer.SONAR_RANGE / Math.cos(Pioneer.SONAR_FOV / 2.0);
+		final int reach = (int)Math.ceil(edge / mpp) + 1;
+		final int size = (2 * reach + 1) * (2 * reach + 1);
+		final long[] cells = new long[size];
+		int n = 0;
+		for(int h = -reach; h <= reach; h++)
+			for(int w = -reach; w <= reach; w++) {
+				final double dx = mpp * (w - 0.5), dy = mpp * (h - 0.5);
+				final double t = Utils.elength(dx, dy);
+				if(t > edge + mpp) continue;
+				final double da = Utils.normalize(Utils.normalize(Math.atan2(dy, dx)) - bearing);
+				// wide enough for any position of the sonar in its cell and bearing in the bin
+				if(Math.abs(da) > Pioneer.SONAR_FOV / 2.0 + Math.PI / BINS + Math.asin(Math.min(1.0, mpp / t))) continue;
+				// nearest first, packed as distance bits then cell offsets
+				cells[n++] = (long)Float.floatToIntBits((float)t) << 32
+						| (long)((h + reach) & 0xffff) << 16 | ((w + reach) & 0xffff);
+			}
+		Arrays.sort(cells, 0, n);
+		final int[] cols = new int[n], rows = new int[n];
+		final float[] gains = new float[n], distances = new float[n];
+		for(int k = 0; k < n; k++) {
+			cols[k] = (int)(cells[k] & 0xffff) - reach;
+			rows[k] = (int)(cells[k] >>> 16 & 0xffff) - reach;
+			distances[k] = Float.intBitsToFloat((int)(cells[k] >>> 32));
+			gains[k] = (float)Mapper.gain(Utils.normalize(Utils.normalize(Math.atan2(mpp * (rows[k] - 0.5), mpp * (cols[k] - 0.5))) - bearing));
+		}
+		return new Stencil(cols, rows, gains, distances);
+	}
+}
@@ -0,0 +1,138 @@
+/**
+ *
+ */
+
+package localization;
+
+/**
+ * Immutable measurements of one localizer scoring cycle
+ * @author ziyan
+ *
+ */
+public final class CycleMetrics {
+	private final long cycle;
+	private final long wallTime;
+	private final long cellsVisited, cellsPruned, cellsCompared;
+	private final int candidates, candidatesPruned;
+	private final double confidence, margin;
+	private final long convergenceTime;
+
+	/**
+	 * Cycle metrics
+	 * @param cycle cycle number
+	 * @param wallTime time spent scoring (nanosecond)
+	 * @param cellsVisited local map cells looked at over all candidates
+	 * @param cellsPruned local map cells skipped by pruning over all candidates
+	 * @param cellsCompared cells compared with the floorplan for the winner
+	 * @param candidates
+	 * @param candidatesPruned
+	 * @param confidence score of the winner
+	 * @param margin score difference between the two best candidates
+	 * @param convergenceTime time from the start (or the last change of
+	 * candidates) to convergence (nanosecond), -1 if not converged
+	 */
+	CycleMetrics(final long cycle, final long wallTime, final long cellsVisited, final long cellsPruned, final long cellsCompared,
+			final int candidates, final int candidatesPruned, final double confidence, final double margin, final long convergenceTime) {
+		this.cycle = cycle;
+		this.wallTime = wallTime;
+		this.cellsVisited = cellsVisited;
+		this.cellsPruned = cellsPruned;
+		this.cellsCompared = cellsCompared;
+		this.candidates = candidates;
+		this.candidatesPruned = candidatesPruned;
+		this.confidence = confidence;
+		this.margin = margin;
+		this.convergenceTime = convergenceTime;
+	}
+
+	/**
+	 * Cycle number, same as the version of the estimate it produced
+	 * @return
+	 */
+	public long getCycle() {
+		return cycle;
+	}
+
+	/**
+	 * Time spent scoring (nanosecond)
+	 * @return
+	 */
+	public long getWallTime() {
+		return wallTime;
+	}
+
+	/**
+	 * Local map cells looked at, over all candidates
+	 * @return
+	 */
+	public long getCellsVisited() {
+		return cellsVisited;
+	}
+
+	/**
+	 * Local map cells skipped by pruning, over all candidates
+	 * @return
+	 */
+	public long getCellsPruned() {
+		return cellsPruned;
+	}
+
+	/**
+	 * Number of cells compared with the floorplan for the winner
+	 * (the count <code>GridMap.diff</code> scores with)
+	 * @return
+	 */
+	public long getCellsCompared() {
+		return cellsCompared;
+	}
+
+	/**
+	 * Number of candidates
+	 * @return
+	 */
+	public int getCandidates() {
+		return candidates;
+	}
+
+	/**
+	 * Number of candidates abandoned by pruning
+	 * @return
+	 */
+	public int getCandidatesPruned() {
+		return candidatesPruned;
+	}
+
+	/**
+	 * Score of the winner
+	 * @return
+	 */
+	public double getConfidence() {
+		return confidence;
+	}
+
+	/**
+	 * Score difference between the two best candidates
+	 * @return
+	 */
+	public double getMargin() {
+		return margin;
+	}
+
+	/**
+	 * Time from the start (or the last change of candidates) to convergence
+	 * @return nanosecond, -1 if not converged
+	 */
+	public long getConvergenceTime() {
+		return convergenceTime;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "cycle " + cycle + ": " + wallTime / 1000 + " us, " + cellsVisited + " cells visited, " + cellsPruned + " pruned, "
+				+ candidatesPruned + "/" + candidates + " candidates pruned, margin = " + margin;
+	}
+}
@@ -0,0 +1,101 @@
+/**
+ *
+ */
+
+package localization;
+
+import common.Position;
+
+/**
+ * Immutable localization result published by the localizer, a newer
+ * estimate always has a higher version
+ * @author ziyan
+ *
+ */
+public final class Estimate {
+	private final long version;
+	private final String name;
+	private final double x, y, yaw;
+	private final double confidence, margin;
+	private final boolean converged;
+
+	/**
+	 * Localization estimate
+	 * @param version
+	 * @param best most likely start position
+	 * @param confidence score of the most likely start position
+	 * @param margin score difference with the second most likely start position
+	 * @param converged
+	 */
+	Estimate(final long version, final Position best, final double confidence, final double margin, final boolean converged) {
+		this.version = version;
+		this.name = best.getName();
+		this.x = best.getX();
+		this.y = best.getY();
+		this.yaw = best.getYaw();
+		this.confidence = confidence;
+		this.margin = margin;
+		this.converged = converged;
+	}
+
+	/**
+	 * Version, increases with each estimate
+	 * @return
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Most likely start position, a new copy on each call
+	 * @return
+	 */
+	public Position getPosition() {
+		final Position position = new Position(name, x, y, yaw);
+		position.setWeight(confidence);
+		return position;
+	}
+
+	/**
+	 * Score of the most likely start position
+	 * @return
+	 */
+	public double getConfidence() {
+		return confidence;
+	}
+
+	/**
+	 * Score difference between the two most likely start positions
+	 * @return
+	 */
+	public double getMargin() {
+		return margin;
+	}
+
+	/**
+	 * Whether the most likely start position has been stable for a while
+	 * @return
+	 */
+	public boolean isConverged() {
+		return converged;
+	}
+
+	/**
+	 * Whether another estimate has the same start position
+	 * @param o
+	 * @return
+	 */
+	public boolean isSamePosition(final Estimate o) {
+		return o != null && name.equals(o.name) && x == o.x && y == o.y && yaw == o.yaw;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "#" + version + " " + name + " (" + x + ", " + y + ", " + yaw + ") confidence = " + confidence
+				+ " margin = " + margin + (converged ? " converged" : "");
+	}
+}
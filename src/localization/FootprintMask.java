@@ -0,0 +1,67 @@
+/**
+ *
+ */
+
+package localization;
+
+import common.Pioneer;
+
+/**
+ * Rasterized robot footprint: for each row offset from the cell the robot
+ * is in, the run of column offsets covered by the disc, so clearing the
+ * footprint is a few whole-row fills. Cells are taken as covered when their
+ * corner is within the radius of the center of the robot cell, off by at
+ * most half a cell diagonal from the exact robot position.
+ * @author ziyan
+ *
+ */
+final class FootprintMask {
+	private static volatile FootprintMask cached;
+
+	private final double mpp;
+
+	/**
+	 * Row offsets are -reach to reach
+	 */
+	final int reach;
+
+	/**
+	 * First and last column offset of each row, indexed by row offset + reach
+	 * (rows grow with y, as in player coordinate)
+	 */
+	final int[] first, last;
+
+	private FootprintMask(final double mpp) {
+		this.mpp = mpp;
+		final double radius = Pioneer.RADIUS / mpp;
+		this.reach = (int)Math.ceil(radius) + 1;
+		this.first = new int[2 * reach + 1];
+		this.last = new int[2 * reach + 1];
+		for(int h = -reach; h <= reach; h++) {
+			final double dh = h - 0.5;
+			if(dh * dh > radius * radius) {
+				// empty row
+				first[h + reach] = 1;
+				last[h + reach] = 0;
+				continue;
+			}
+			final double half = Math.sqrt(radius * radius - dh * dh);
+			first[h + reach] = (int)Math.ceil(0.5 - half);
+			last[h + reach] = (int)Math.floor(0.5 + half);
+		}
+	}
+
+	/**
+	 * Footprint at a resolution, built once and kept for the last resolution asked for
+	 * @param mpp
+	 * @return
+	 */
+	static FootprintMask get(final double mpp) {
+		FootprintMask mask = cached;
+		if(mask == null || mask.mpp != mpp) {
+			mask = new FootprintMask(mpp);
+			cached = mask;
+		}
+		return mask;
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ *
+ */
+
+package localization;
+
+import java.util.Arrays;
+
+import common.GridMap;
+import common.MapProjection;
+import common.MapSnapshot;
+import common.Parallel;
+import common.Position;
+
+/**
+ * Keeps the <code>GridMap.diff</code> accumulators (number of compared
+ * cells and sum of absolute differences) of each candidate up to date from
+ * the cells changed in a map snapshot, so a scoring cycle costs
+ * O(changed cells x candidates) instead of O(explored area x candidates)
+ * @author ziyan
+ *
+ */
+public class IncrementalScorer implements MapSnapshot.Listener {
+	private final GridMap floorplan;
+	private final MapProjection[] projections;
+	private final int[] counts, diffs;
+
+	// cells changed since the last apply
+	private int[] rows, cols;
+	private byte[] befores, afters;
+	private int changes, applied;
+
+	/**
+	 * Incremental scorer
+	 * @param floorplan
+	 * @param local snapshot of the local map the candidates are scored against
+	 * @param candidates
+	 */
+	public IncrementalScorer(final GridMap floorplan, final GridMap local, final Position[] candidates) {
+		this.floorplan = floorplan;
+		this.projections = new MapProjection[candidates.length];
+		this.counts = new int[candidates.length];
+		this.diffs = new int[candidates.length];
+		for(int k = 0; k < candidates.length; k++)
+			projections[k] = new MapProjection(floorplan, local, candidates[k]);
+		this.rows = new int[1024];
+		this.cols = new int[1024];
+		this.befores = new byte[1024];
+		this.afters = new byte[1024];
+		this.changes = 0;
+	}
+
+	/**
+	 * Score all candidates from scratch
+	 * @param local
+	 */
+	public void reset(final GridMap local) {
+		changes = 0;
+		applied = 0;
+		Parallel.run(0, projections.length, 1, new Parallel.Body() {
+			public void run(final int from, final int to) {
+				final int[] result = new int[2];
+				for(int k = from; k < to; k++) {
+					result[0] = result[1] = 0;
+					projections[k].compare(local.getTop(), local.getLeft(), local.getBottom(), local.getRight(), result);
+					counts[k] = result[0];
+					diffs[k] = result[1];
+				}
+			}
+		});
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see common.MapSnapshot.Listener#changed(int, int, byte, byte)
+	 */
+	public void changed(final int r, final int c, final byte before, final byte after) {
+		if(changes == rows.length) {
+			rows = Arrays.copyOf(rows, changes * 2);
+			cols = Arrays.copyOf(cols, changes * 2);
+			befores = Arrays.copyOf(befores, changes * 2);
+			afters = Arrays.copyOf(afters, changes * 2);
+		}
+		rows[changes] = r;
+		cols[changes] = c;
+		befores[changes] = before;
+		afters[changes] = after;
+		changes++;
+	}
+
+	/**
+	 * Number of changed cells waiting to be applied
+	 * @return
+	 */
+	public int getPendingChanges() {
+		return changes;
+	}
+
+	/**
+	 * Fold the reported changes into every candidate's accumulators
+	 */
+	public void apply() {
+		final int n = changes;
+		changes = 0;
+		applied = n;
+		if(n == 0) return;
+		Parallel.run(0, projections.length, 1, new Parallel.Body() {
+			public void run(final int from, final int to) {
+				for(int k = from; k < to; k++) {
+					final MapProjection projection = projections[k];
+					int count = counts[k], diff = diffs[k];
+					for(int j = 0; j < n; j++) {
+						final int f = projection.project(rows[j], cols[j]);
+						if(f < 0) continue;
+						final byte value = floorplan.getData(f);
+						if(befores[j] != 0) {
+							count--;
+							diff -= Math.abs(befores[j] - value);
+						}
+						if(afters[j] != 0) {
+							count++;
+							diff += Math.abs(afters[j] - value);
+						}
+					}
+					counts[k] = count;
+					diffs[k] = diff;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Number of changed cells folded in by the last apply
+	 * @return
+	 */
+	public int getAppliedChanges() {
+		return applied;
+	}
+
+	/**
+	 * Score of a candidate, equal to <code>GridMap.diff</code> on the snapshot
+	 * @param k candidate index
+	 * @param local snapshot the candidates are scored against
+	 * @return
+	 */
+	public double getScore(final int k, final GridMap local) {
+		if(!local.isSufficient()) return 0.0;
+		return GridMap.score(counts[k], diffs[k]);
+	}
+
+	/**
+	 * Number of cells compared for a candidate
+	 * @param k
+	 * @return
+	 */
+	public int getCount(final int k) {
+		return counts[k];
+	}
+}
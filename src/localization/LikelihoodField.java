@@ -0,0 +1,129 @@
+/**
+ *
+ */
+
+package localization;
+
+import common.DistanceTransform;
+import common.GridMap;
+import common.Pioneer;
+
+/**
+ * Likelihood field sensor model: precomputed log likelihood of a sonar
+ * return ending in each floorplan cell, from the euclidean distance of the
+ * cell to the nearest obstacle surface, so a reading is scored with one lookup
+ * @author ziyan
+ *
+ */
+public class LikelihoodField {
+	/**
+	 * Standard deviation of a sonar reading (meter)
+	 */
+	public static final double SIGMA_HIT = 0.2;
+
+	/**
+	 * Weight of the measurement noise model against random readings
+	 */
+	public static final double Z_HIT = 0.8;
+
+	/**
+	 * Weight of random readings
+	 */
+	public static final double Z_RAND = 0.2;
+
+	private final GridMap floorplan;
+	private final float[] field;
+	private final float outside;
+
+	/**
+	 * Build the likelihood field of a floorplan
+	 * @param floorplan
+	 */
+	public LikelihoodField(final GridMap floorplan) {
+		this.floorplan = floorplan;
+		final int width = floorplan.getWidth(), height = floorplan.getHeight();
+		// returns come from obstacle surfaces, so distances are measured to
+		// obstacle cells next to free space and a return deep inside a solid
+		// area is as unlikely as one in the open
+		final boolean[] surface = new boolean[width * height];
+		for(int r = 0; r < height; r++)
+			for(int c = 0, i = r * width; c < width; c++, i++)
+				surface[i] = floorplan.getData(i) != GridMap.TRAVERSABLE && (
+						(c > 0 && floorplan.getData(i - 1) == GridMap.TRAVERSABLE) ||
+						(c < width - 1 && floorplan.getData(i + 1) == GridMap.TRAVERSABLE) ||
+						(r > 0 && floorplan.getData(i - width) == GridMap.TRAVERSABLE) ||
+						(r < height - 1 && floorplan.getData(i + width) == GridMap.TRAVERSABLE));
+		final int[] dist = DistanceTransform.squaredEuclidean(surface, width, height);
+		final double mpp = floorplan.getMPP();
+		this.field = new float[width * height];
+		for(int i = 0; i < field.length; i++)
+			field[i] = (float)likelihood(dist[i] * mpp * mpp);
+		this.outside = (float)Math.log(Z_RAND / Pioneer.SONAR_RANGE);
+	}
+
+	/**
+	 * Log likelihood of a return at a squared distance from the nearest obstacle
+	 * @param d2 squared distance (meter)
+	 * @return
+	 */
+	private static double likelihood(final double d2) {
+		return Math.log(Z_HIT * Math.exp(-d2 / (2.0 * SIGMA_HIT * SIGMA_HIT)) + Z_RAND / Pioneer.SONAR_RANGE);
+	}
+
+	/**
+	 * Floorplan the field was built from
+	 * @return
+	 */
+	public GridMap getFloorplan() {
+		return floorplan;
+	}
+
+	/**
+	 * Log likelihood of a return outside of the floorplan, the lowest value of the field
+	 * @return
+	 */
+	public float getOutside() {
+		return outside;
+	}
+
+	/**
+	 * Log likelihood of a return ending at a player coordinate
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public double get(final double x, final double y) {
+		final int r = floorplan.getRow(y), c = floorplan.getCol(x);
+		if(r < 0 || c < 0 || r >= floorplan.getHeight() || c >= floorplan.getWidth()) return outside;
+		return field[r * floorplan.getWidth() + c];
+	}
+
+	/**
+	 * Log likelihood of a return ending in a floorplan cell
+	 * @param i raw index
+	 * @return
+	 */
+	public float get(final int i) {
+		return field[i];
+	}
+
+	/**
+	 * Log likelihood of a sonar scan taken from a pose, readings beyond the
+	 * sonar range carry no information and are skipped
+	 * @param ranges
+	 * @param x
+	 * @param y
+	 * @param yaw
+	 * @return
+	 */
+	public double score(final float[] ranges, final double x, final double y, final double yaw) {
+		double log = 0.0;
+		for(int i = 0; i < ranges.length && i < Pioneer.SONAR_COUNT; i++) {
+			if(ranges[i] >= Pioneer.SONAR_RANGE) continue;
+			final double bearing = yaw + Pioneer.SONAR_BEARINGS[i];
+			final double t = Pioneer.SONAR_OFFSETS[i] + ranges[i];
+			log += get(x + t * Math.cos(bearing), y + t * Math.sin(bearing));
+		}
+		return log;
+	}
+}
@@ -1,25 +1,75 @@
 /**
- * 
+ *
  */
 package localization;
 
 import java.util.Arrays;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import common.GridMap;
 import common.Position;
+import common.MapSnapshot;
 import common.Utils;
 
 /**
- * Localizer thread
+ * Localizer thread, rescores the candidates whenever enough cells of the
+ * local map changed and publishes the result as an immutable estimate
  * @author ziyan
  *
  */
 public class Localizer extends Thread {
+	/**
+	 * Number of changed cells that triggers a rescore
+	 */
+	private static final long MIN_CHANGES = 200;
+
+	/**
+	 * Upper limit of the number of changed cells between rescores once converged
+	 */
+	private static final long MAX_CHANGES = 25600;
+
+	/**
+	 * Longest wait between rescores, even if the map did not change enough
+	 */
+	private static final long MAX_WAIT = TimeUnit.SECONDS.toNanos(5);
+
+	/**
+	 * Number of consecutive rescores with the same winner to be converged
+	 */
+	private static final int CONVERGED_ROUNDS = 5;
+
+	/**
+	 * Score difference between the two best candidates to be converged
+	 */
+	private static final double CONVERGED_MARGIN = 0.02;
 
 	private final GridMap map;
 	private final GridMap floorplan;
-	private final Position[] candidates;
-	private boolean done;
+	private Position[] candidates;
+	private volatile Position[] ranking;
+	private volatile Estimate estimate;
+	private final AtomicReference<Position[]> seeds;
+	private final MapSnapshot snapshot;
+	private final boolean bounded;
+	private final CopyOnWriteArrayList<Listener> listeners;
+	private final LocalizerMetrics metrics;
+	private volatile boolean done;
+
+	/**
+	 * Notified after each scoring cycle
+	 * @author ziyan
+	 *
+	 */
+	public interface Listener {
+		/**
+		 * Called on the localizer thread after each scoring cycle
+		 * @param metrics
+		 */
+		public void cycle(CycleMetrics metrics);
+	}
 
 	/**
 	 * Localizer thread
@@ -27,9 +77,22 @@ public class Localizer extends Thread {
 	 * @param map local map generated from mapper
 	 */
 	public Localizer(final GridMap floorplan, final GridMap map) {
+		this(floorplan, map, false);
+	}
+
+	/**
+	 * Localizer thread
+	 * @param floorplan floorplan (workspace)
+	 * @param map local map generated from mapper
+	 * @param bounded abandon candidates that cannot beat the best one instead
+	 * of ranking all of them exactly, for large candidate sets
+	 */
+	public Localizer(final GridMap floorplan, final GridMap map, final boolean bounded) {
 		this.done = false;
+		this.bounded = bounded;
 		this.floorplan = floorplan;
 		this.map = map;
+		this.snapshot = new MapSnapshot(map);
 		this.candidates = new Position[] {
 				new Position("p0", -15.5, 12.0, 0.0),
 				new Position("p1", -16.5, 12.0, Utils.dtor(-180.0)),
@@ -40,25 +103,76 @@ public class Localizer extends Thread {
 				new Position("p6", 7.5, -5.0, Utils.dtor(90.0)),
 				new Position("p7", 0.0, -7.0, Utils.dtor(-90.0))
 		};
+		this.ranking = copy(candidates);
+		this.estimate = new Estimate(0, candidates[0], 0.0, 0.0, false);
+		this.seeds = new AtomicReference<Position[]>();
+		this.listeners = new CopyOnWriteArrayList<Listener>();
+		this.metrics = new LocalizerMetrics();
+		this.listeners.add(metrics);
 		this.setPriority(1);
 		this.start();
 	}
 
 	/**
 	 * get a list of candidates in order
-	 * from most likely to most unlikely
-	 * @return
+	 * from most likely to most unlikely,
+	 * when bounded only the first one is ranked exactly
+	 * @return a copy
 	 */
 	public Position[] getCandidates() {
-		return candidates;
+		return copy(ranking);
 	}
 
 	/**
 	 * get most likely start location
-	 * @return
+	 * @return a copy
 	 */
 	public Position getCandidate() {
-		return candidates[0];
+		return estimate.getPosition();
+	}
+
+	/**
+	 * Latest estimate, safe to call from any thread without locking
+	 * @return
+	 */
+	public Estimate getEstimate() {
+		return estimate;
+	}
+
+	/**
+	 * Metrics accumulated over the scoring cycles, also registered as
+	 * a JMX MBean while the localizer runs
+	 * @return
+	 */
+	public LocalizerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Notify a listener after each scoring cycle
+	 * @param listener
+	 */
+	public void addListener(final Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Stop notifying a listener
+	 * @param listener
+	 */
+	public void removeListener(final Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Replace the candidates, e.g. with the result of a global relocalization,
+	 * they are scored from scratch on the next cycle
+	 * @param candidates
+	 */
+	public void setCandidates(final Position[] candidates) {
+		if(candidates.length == 0) throw new IllegalArgumentException("At least one candidate is needed");
+		seeds.set(copy(candidates));
+		LockSupport.unpark(this);
 	}
 
 	/**
@@ -66,6 +180,21 @@ public class Localizer extends Thread {
 	 */
 	public void shutdown() {
 		this.done = true;
+		LockSupport.unpark(this);
+	}
+
+	/**
+	 * Copy positions with their weights
+	 * @param positions
+	 * @return
+	 */
+	private static Position[] copy(final Position[] positions) {
+		final Position[] copy = new Position[positions.length];
+		for(int i = 0; i < positions.length; i++) {
+			copy[i] = new Position(positions[i].getName(), positions[i].getX(), positions[i].getY(), positions[i].getYaw());
+			copy[i].setWeight(positions[i].getWeight());
+		}
+		return copy;
 	}
 
 	/*
@@ -74,37 +203,119 @@ public class Localizer extends Thread {
 	 */
 	@Override
 	public void run() {
-		try {
-			while(!done) {
-				/*if(!map.isSufficient()) {
-					Thread.sleep(100);
-					continue;
-				}*/
+		// wake up at the end of each map update to count the changed cells
+		final GridMap.UpdateListener wakeup = new GridMap.UpdateListener() {
+			public void updated(final GridMap map) {
+				LockSupport.unpark(Localizer.this);
+			}
+		};
+		map.addUpdateListener(wakeup);
+		metrics.register(getName());
+
+		// only the cells that changed are rescored, unless bounded
+		IncrementalScorer scorer = bounded ? null : new IncrementalScorer(floorplan, snapshot.getMap(), candidates);
+		BoundedScorer bounder = bounded ? new BoundedScorer(floorplan, snapshot.getMap(), candidates) : null;
+		long version = 0, changes = 0, threshold = MIN_CHANGES;
+		int rounds = 0;
+		String winner = null;
+		long start = System.nanoTime(), convergence = -1;
+		while(!done) {
+			// sleep until enough cells changed, longer once converged
+			final long deadline = System.nanoTime() + MAX_WAIT;
+			while(!done && seeds.get() == null && map.getChanges() - changes < threshold) {
+				final long remaining = deadline - System.nanoTime();
+				if(remaining <= 0) break;
+				LockSupport.parkNanos(this, remaining);
+			}
+			if(done) break;
+
+			boolean rescore = false;
+			// replacing the candidates is part of the cycle that scores them
+			final long begin = System.nanoTime();
+			long compared = 0;
+			final Position[] replacement = seeds.getAndSet(null);
+			if(replacement != null) {
+				candidates = replacement;
+				if(bounded) {
+					bounder = new BoundedScorer(floorplan, snapshot.getMap(), candidates);
+				} else {
+					final GridMap local = snapshot.getMap();
+					scorer = new IncrementalScorer(floorplan, local, candidates);
+					scorer.reset(local);
+					// the reset compares the whole bounding box for every candidate
+					if(local.getBottom() >= local.getTop())
+						compared = (long)(local.getBottom() - local.getTop() + 1) * (local.getRight() - local.getLeft() + 1) * candidates.length;
+				}
+				rounds = 0;
+				winner = null;
+				threshold = MIN_CHANGES;
+				rescore = true;
+				start = System.nanoTime();
+				convergence = -1;
+			}
+			// scores only change when the map does, score a consistent copy
+			changes = map.getChanges();
+			if(snapshot.refresh(scorer) == 0 && !rescore) continue;
+			long visited, pruned;
+			int best = 0;
+			if(bounded) {
+				bounder.score();
 				for(int i = 0; i < candidates.length; i++)
-					candidates[i].setWeight(GridMap.diff(floorplan, map, candidates[i]));
-				Arrays.sort(candidates);
-				/*
-				System.out.println();
-				System.out.println("Sorted position candidates:");
-				System.out.println("===========================");
+					candidates[i].setWeight(bounder.getScore(i));
+				visited = bounder.getVisitedCells();
+				pruned = bounder.getPrunedCells();
+			} else {
+				scorer.apply();
 				for(int i = 0; i < candidates.length; i++)
-					System.out.println(candidates[i]);
-				System.out.println();
-				 */
-				System.out.println("Localizer: most likely = " + candidates[0]);
-				if(candidates.length <= 1) break; // probably never going to happen
+					candidates[i].setWeight(scorer.getScore(i, snapshot.getMap()));
+				visited = compared + (long)scorer.getAppliedChanges() * candidates.length;
+				pruned = 0;
+			}
+			final Position[] sorted = copy(candidates);
+			Arrays.sort(sorted);
+			final long end = System.nanoTime();
+			for(int i = 1; i < candidates.length; i++)
+				if(candidates[i].getWeight() > candidates[best].getWeight()) best = i;
 
-				Thread.sleep(100);
+			// converged once the same candidate stays ahead by a margin
+			final double margin = sorted.length > 1 ? sorted[0].getWeight() - sorted[1].getWeight() : sorted[0].getWeight();
+			if(sorted[0].getName().equals(winner) && margin >= CONVERGED_MARGIN) {
+				rounds++;
+			} else {
+				rounds = 0;
+				winner = sorted[0].getName();
 			}
-		} catch(final InterruptedException e) { }
+			final boolean converged = rounds >= CONVERGED_ROUNDS;
+			if(!converged) convergence = -1;
+			else if(convergence < 0) convergence = end - start;
+			threshold = converged ? Math.min(MAX_CHANGES, threshold * 2) : MIN_CHANGES;
 
-		//  output localization result
-		if(candidates.length > 0) {
+			ranking = sorted;
+			estimate = new Estimate(++version, sorted[0], sorted[0].getWeight(), margin, converged);
+			final CycleMetrics cycle = new CycleMetrics(version, end - begin, visited, pruned,
+					bounded ? bounder.getCount(best) : scorer.getCount(best), candidates.length,
+					bounded ? bounder.getPrunedCandidates() : 0, sorted[0].getWeight(), margin, convergence);
+			for(final Listener listener : listeners)
+				listener.cycle(cycle);
+			/*
+			System.out.println();
+			System.out.println("Sorted position candidates:");
+			System.out.println("===========================");
+			for(int i = 0; i < sorted.length; i++)
+				System.out.println(sorted[i]);
 			System.out.println();
-			System.out.println("Robot start location:");
-			System.out.println("=====================");
-			System.out.println(candidates[0]);
+			 */
+			System.out.println("Localizer: most likely = " + estimate);
+			if(candidates.length <= 1) break; // probably never going to happen
 		}
+		map.removeUpdateListener(wakeup);
+		metrics.unregister();
+
+		//  output localization result
+		System.out.println();
+		System.out.println("Robot start location:");
+		System.out.println("=====================");
+		System.out.println(estimate);
 	}
 
 }
@@ -0,0 +1,133 @@
+/**
+ *
+ */
+
+package localization;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Accumulates the metrics of the localizer cycles, registered as a JMX MBean
+ * @author ziyan
+ *
+ */
+public class LocalizerMetrics implements LocalizerMetricsMBean, Localizer.Listener {
+	private CycleMetrics last;
+	private long cycles, wallTime, maxWallTime, cellsVisited, cellsPruned;
+	private ObjectName name;
+
+	/**
+	 * Localizer metrics
+	 */
+	public LocalizerMetrics() {
+		reset();
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see localization.Localizer.Listener#cycle(localization.CycleMetrics)
+	 */
+	public synchronized void cycle(final CycleMetrics metrics) {
+		last = metrics;
+		cycles++;
+		wallTime += metrics.getWallTime();
+		maxWallTime = Math.max(maxWallTime, metrics.getWallTime());
+		cellsVisited += metrics.getCellsVisited();
+		cellsPruned += metrics.getCellsPruned();
+	}
+
+	/**
+	 * Register with the platform MBean server
+	 * @param localizer name of the localizer
+	 */
+	public synchronized void register(final String localizer) {
+		try {
+			final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			name = new ObjectName("localization:type=Localizer,name=" + ObjectName.quote(localizer));
+			if(!server.isRegistered(name)) server.registerMBean(this, name);
+		} catch(final JMException e) {
+			System.err.println("LocalizerMetrics: failed to register MBean: " + e.getMessage());
+			name = null;
+		}
+	}
+
+	/**
+	 * Unregister from the platform MBean server
+	 */
+	public synchronized void unregister() {
+		if(name == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch(final JMException e) { }
+		name = null;
+	}
+
+	/**
+	 * Metrics of the last cycle
+	 * @return null if no cycle yet
+	 */
+	public synchronized CycleMetrics getLast() {
+		return last;
+	}
+
+	public synchronized long getCycles() {
+		return cycles;
+	}
+
+	public synchronized double getLastWallTime() {
+		return last == null ? 0.0 : last.getWallTime() / 1e6;
+	}
+
+	public synchronized double getMeanWallTime() {
+		return cycles == 0 ? 0.0 : wallTime / 1e6 / cycles;
+	}
+
+	public synchronized double getMaxWallTime() {
+		return maxWallTime / 1e6;
+	}
+
+	public synchronized long getLastCellsVisited() {
+		return last == null ? 0 : last.getCellsVisited();
+	}
+
+	public synchronized long getTotalCellsVisited() {
+		return cellsVisited;
+	}
+
+	public synchronized long getTotalCellsPruned() {
+		return cellsPruned;
+	}
+
+	public synchronized long getCellsCompared() {
+		return last == null ? 0 : last.getCellsCompared();
+	}
+
+	public synchronized int getCandidates() {
+		return last == null ? 0 : last.getCandidates();
+	}
+
+	public synchronized int getCandidatesPruned() {
+		return last == null ? 0 : last.getCandidatesPruned();
+	}
+
+	public synchronized double getConfidence() {
+		return last == null ? 0.0 : last.getConfidence();
+	}
+
+	public synchronized double getMargin() {
+		return last == null ? 0.0 : last.getMargin();
+	}
+
+	public synchronized double getConvergenceTime() {
+		return last == null || last.getConvergenceTime() < 0 ? -1.0 : last.getConvergenceTime() / 1e6;
+	}
+
+	public synchronized void reset() {
+		cycles = wallTime = maxWallTime = cellsVisited = cellsPruned = 0;
+		last = null;
+	}
+}
@@ -0,0 +1,95 @@
+/**
+ *
+ */
+
+package localization;
+
+/**
+ * JMX view of the localizer metrics
+ * @author ziyan
+ *
+ */
+public interface LocalizerMetricsMBean {
+	/**
+	 * Number of scoring cycles so far
+	 * @return
+	 */
+	public long getCycles();
+
+	/**
+	 * Scoring time of the last cycle (millisecond)
+	 * @return
+	 */
+	public double getLastWallTime();
+
+	/**
+	 * Mean scoring time per cycle (millisecond)
+	 * @return
+	 */
+	public double getMeanWallTime();
+
+	/**
+	 * Longest scoring time of a cycle (millisecond)
+	 * @return
+	 */
+	public double getMaxWallTime();
+
+	/**
+	 * Local map cells looked at during the last cycle, over all candidates
+	 * @return
+	 */
+	public long getLastCellsVisited();
+
+	/**
+	 * Local map cells looked at so far, over all candidates
+	 * @return
+	 */
+	public long getTotalCellsVisited();
+
+	/**
+	 * Local map cells skipped by pruning so far, over all candidates
+	 * @return
+	 */
+	public long getTotalCellsPruned();
+
+	/**
+	 * Number of cells compared with the floorplan for the last winner
+	 * @return
+	 */
+	public long getCellsCompared();
+
+	/**
+	 * Number of candidates
+	 * @return
+	 */
+	public int getCandidates();
+
+	/**
+	 * Number of candidates abandoned during the last cycle
+	 * @return
+	 */
+	public int getCandidatesPruned();
+
+	/**
+	 * Score of the last winner
+	 * @return
+	 */
+	public double getConfidence();
+
+	/**
+	 * Score difference between the two best candidates of the last cycle
+	 * @return
+	 */
+	public double getMargin();
+
+	/**
+	 * Time to convergence (millisecond), -1 if not converged
+	 * @return
+	 */
+	public double getConvergenceTime();
+
+	/**
+	 * Clear the accumulated totals
+	 */
+	public void reset();
+}
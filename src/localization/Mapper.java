@@ -4,9 +4,10 @@
 
 package localization;
 
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.LockSupport;
 
 import common.GridMap;
+import common.MapWriter;
 import common.Pioneer;
 import common.Utils;
 
@@ -21,6 +22,10 @@ public class Mapper extends Thread {
 	 * Extened sonar range used to calculate bounding box
 	 */
 	private static final double SONAR_EDGE = Pioneer.SONAR_RANGE / Math.cos(Pioneer.SONAR_FOV / 2.0);
+	/**
+	 * Cosine of the half sonar field of view, for cone membership tests
+	 */
+	private static final double COS_HALF_FOV = Math.cos(Pioneer.SONAR_FOV / 2.0);
 	/**
 	 * Sonar model setting
 	 */
@@ -33,44 +38,89 @@ public class Mapper extends Thread {
 	 * Sonar model setting
 	 */
 	private static final double D3 = 0.75;
+	/**
+	 * Number of scans that can wait for the mapper
+	 */
+	private static final int QUEUE_CAPACITY = 64;
 
 	private final GridMap map;
+	private final RangeSensorModel model;
+	private final OccupancyLayer layer;
 
-	private float[] ranges;
-	private double x;
-	private double y;
-	private double yaw;
-	private final Semaphore semaphore;
+	private final ScanQueue queue;
 
-	private boolean done;
+	private volatile boolean done;
 
 	/**
 	 * Mapper thread
 	 * @param map local map to be updated
 	 */
 	public Mapper(final GridMap map) {
+		this(map, false);
+	}
+
+	/**
+	 * Mapper thread
+	 * @param map local map to be updated
+	 * @param logOdds accumulate the readings as log-odds and export them to the map,
+	 * instead of adding them to the map data directly
+	 */
+	public Mapper(final GridMap map, final boolean logOdds) {
+		this(map, new ConeStencils(map.getMPP()), logOdds);
+	}
+
+	/**
+	 * Mapper thread
+	 * @param map local map to be updated
+	 * @param model sensor model the scans are mapped with
+	 */
+	public Mapper(final GridMap map, final RangeSensorModel model) {
+		this(map, model, null);
+	}
+
+	private Mapper(final GridMap map, final ConeStencils stencils, final boolean logOdds) {
+		this(map, new SonarConeModel(stencils), logOdds ? new OccupancyLayer(map.getWidth(), map.getHeight(), stencils) : null);
+	}
+
+	private Mapper(final GridMap map, final RangeSensorModel model, final OccupancyLayer layer) {
 		this.map = map;
+		this.model = model;
+		this.layer = layer;
 		this.done = false;
-		this.semaphore = new Semaphore(0);
+		this.queue = new ScanQueue(QUEUE_CAPACITY);
 		this.setPriority(4);
 		this.start();
 	}
 
 	/**
-	 * Update robot location in local odometry (not the real)
-	 * @param ranges sonar readings
+	 * Update robot location in local odometry (not the real),
+	 * to be called from a single thread
+	 * @param ranges one reading per beam of the sensor model, copied
 	 * @param x
 	 * @param y
 	 * @param yaw
+	 * @return false if the mapper is too far behind and the scan was dropped
 	 */
-	public void update(final float[] ranges, final double x, final double y, final double yaw) {
-		synchronized(this) {
-			this.ranges = ranges;
-			this.x = x;
-			this.y = y;
-			this.yaw = yaw;
-		}
-		semaphore.release();
+	public boolean update(final float[] ranges, final double x, final double y, final double yaw) {
+		final boolean queued = queue.offer(ranges, x, y, yaw);
+		LockSupport.unpark(this);
+		return queued;
+	}
+
+	/**
+	 * Scans waiting for the mapper, with counters of depth, drops and latency
+	 * @return
+	 */
+	public ScanQueue getQueue() {
+		return queue;
+	}
+
+	/**
+	 * Sensor model the scans are mapped with
+	 * @return
+	 */
+	public RangeSensorModel getModel() {
+		return model;
 	}
 
 	/**
@@ -78,7 +128,7 @@ public class Mapper extends Thread {
 	 */
 	public void shutdown() {
 		this.done = true;
-		this.interrupt();
+		LockSupport.unpark(this);
 	}
 
 	/*
@@ -86,50 +136,55 @@ public class Mapper extends Thread {
 	 * @see java.lang.Thread#run()
 	 */
 	public void run() {
-		double x, y, yaw;
-		float[] ranges;
-		while(!done) {
-			try {
-				semaphore.acquire();
-				while(semaphore.availablePermits() > 0)
-					semaphore.acquire();
-			} catch (final InterruptedException e) { }
-			if(done) return;
-
-			synchronized(this) {
-				x = this.x;
-				y = this.y;
-				yaw = this.yaw;
-				ranges = this.ranges;
+		// one map update per batch, scans that arrived during the last batch are all applied
+		final ScanQueue.Handler handler = new ScanQueue.Handler() {
+			public void begin(final int count) {
+				if(layer == null) map.beginUpdate();
 			}
 
-			map(map, x, y);
-			map(map, ranges, x, y, yaw);
-		}
+			public void scan(final float[] ranges, final double x, final double y, final double yaw) {
+				if(layer != null) {
+					layer.free(x, y);
+					layer.update(ranges, x, y, yaw);
+					return;
+				}
+				map(map, x, y);
+				model.map(map, ranges, x, y, yaw);
+			}
 
+			public void end() {
+				if(layer != null) {
+					map.beginUpdate();
+					layer.export(map);
+				}
+				map.endUpdate();
+			}
+		};
+		while(!done) {
+			if(queue.drain(handler) == 0) LockSupport.park(this);
+		}
+		System.out.println("Mapper: " + queue);
 	}
 
-	public static void map(final GridMap map, final double x, final double y) {
-		final int left = (int)((x - Pioneer.RADIUS) / map.getMPP());
-		final int right = (int)((x + Pioneer.RADIUS) / map.getMPP());
-		final int top = (int)((y - Pioneer.RADIUS) / map.getMPP());
-		final int bottom = (int)((y + Pioneer.RADIUS) / map.getMPP());
-		for(int w = left; w <= right; w++) {
-			for(int h = top; h <= bottom; h++) {
-				final int ww = w + map.getWidth()/2;
-				final int hh = map.getHeight() - (h + map.getHeight()/2);
-				if(ww < 0 || hh < 0 || ww >= map.getWidth() || hh >= map.getHeight()) continue;
-
-				// convert to precise cordinates
-				final double dw = map.getMPP() * w;
-				final double dh = map.getMPP() * h;
-				final double t = Utils.elength(x - dw, y - dh);
-
-				// discard those out of range
-				if(t > Pioneer.RADIUS) continue;
-
-				map.setData(hh, ww, GridMap.TRAVERSABLE);
-			}
+	/**
+	 * Mark the cells under the robot as traversable, one row of the cached
+	 * footprint at a time
+	 * @param writer the map, or a shard of it
+	 * @param x
+	 * @param y
+	 */
+	public static void map(final MapWriter writer, final double x, final double y) {
+		final GridMap map = writer.getMap();
+		final FootprintMask mask = FootprintMask.get(map.getMPP());
+		final int width = map.getWidth(), height = map.getHeight();
+		final int row = height - ((int)Math.floor(y / map.getMPP()) + height / 2);
+		final int col = (int)Math.floor(x / map.getMPP()) + width / 2;
+		for(int h = -mask.reach; h <= mask.reach; h++) {
+			final int r = row - h;
+			if(r < 0 || r >= height) continue;
+			final int from = Math.max(0, col + mask.first[h + mask.reach]);
+			final int to = Math.min(width - 1, col + mask.last[h + mask.reach]);
+			writer.fillRow(r, from, to, GridMap.TRAVERSABLE);
 		}
 	}
 
@@ -162,13 +217,15 @@ public class Mapper extends Thread {
 			final int top = (int)(yMin / map.getMPP());
 			final int bottom = (int)(yMax / map.getMPP());
 
-			for(int w = left; w <= right; w++) {
-				for(int h = top; h <= bottom; h++) {
+			for(int h = top; h <= bottom; h++) {
 
-					// convert to map coordinate
+				// convert to map coordinate
+				final int hh = map.getHeight() - (h + map.getHeight()/2);
+				if(hh < 0 || hh >= map.getHeight()) continue;
+				final int row = map.getIndex(hh, 0);
+				for(int w = left; w <= right; w++) {
 					final int ww = w + map.getWidth()/2;
-					final int hh = map.getHeight() - (h + map.getHeight()/2);
-					if(ww < 0 || hh < 0 || ww >= map.getWidth() || hh >= map.getHeight()) continue;
+					if(ww < 0 || ww >= map.getWidth()) continue;
 
 					// convert to precise cordinates
 					final double dw = map.getMPP() * w;
@@ -188,7 +245,7 @@ public class Mapper extends Thread {
 
 					int prob = (int)((GridMap.INTRAVERSABLE - GridMap.TRAVERSABLE) *
 							(model(ranges[i], da, t) +
-									(double)map.getData(hh, ww)/(double)(GridMap.INTRAVERSABLE - GridMap.TRAVERSABLE)));
+									(double)map.getData(row + ww)/(double)(GridMap.INTRAVERSABLE - GridMap.TRAVERSABLE)));
 					if(prob > GridMap.INTRAVERSABLE) prob = GridMap.INTRAVERSABLE;
 					if(prob < GridMap.TRAVERSABLE) prob = GridMap.TRAVERSABLE;
 					// update probability model
@@ -198,11 +255,100 @@ public class Mapper extends Thread {
 		}
 	}
 
+	/**
+	 * Update the map with sonar readings using precomputed cones, same cells
+	 * and ranges as <code>map(GridMap, float[], double, double, double)</code>
+	 * but the angular gain of the sonar model is looked up in the stencil,
+	 * so only a square root is computed per cell
+	 * @param writer the map, or a shard of it
+	 * @param stencils cones built for the resolution of the map
+	 * @param ranges sonar readings
+	 * @param x
+	 * @param y
+	 * @param yaw
+	 */
+	public static void map(final MapWriter writer, final ConeStencils stencils, final float[] ranges, final double x, final double y, final double yaw) {
+		final GridMap map = writer.getMap();
+		if(stencils.getMPP() != map.getMPP()) throw new IllegalArgumentException("Stencils do not match the map resolution");
+		final double mpp = map.getMPP();
+		final int width = map.getWidth(), height = map.getHeight();
+		for(int i = 0; i < ranges.length && i < Pioneer.SONAR_COUNT; i++) {
+			// sonar bearing and absolute position
+			final double bearing = Utils.normalize(Pioneer.SONAR_BEARINGS[i] + yaw);
+			final double sx = x + Pioneer.SONAR_OFFSETS[i] * Math.cos(bearing);
+			final double sy = y + Pioneer.SONAR_OFFSETS[i] * Math.sin(bearing);
+
+			// cell of the sonar in map coordinate, and where the sonar is in that cell
+			final int ws = (int)Math.floor(sx / mpp), hs = (int)Math.floor(sy / mpp);
+			final int row = height - (hs + height / 2);
+			final int col = ws + width / 2;
+			final double fx = sx - mpp * ws, fy = sy - mpp * hs;
+
+			// same bounding box as the exact path
+			final double cos = Math.cos(bearing), sin = Math.sin(bearing);
+			final double x1 = sx + SONAR_EDGE * Math.cos(bearing + Pioneer.SONAR_FOV/2.0);
+			final double y1 = sy + SONAR_EDGE * Math.sin(bearing + Pioneer.SONAR_FOV/2.0);
+			final double x2 = sx + SONAR_EDGE * Math.cos(bearing - Pioneer.SONAR_FOV/2.0);
+			final double y2 = sy + SONAR_EDGE * Math.sin(bearing - Pioneer.SONAR_FOV/2.0);
+			final int left = (int)(Math.min(sx, Math.min(x1, x2)) / mpp) - ws;
+			final int right = (int)(Math.max(sx, Math.max(x1, x2)) / mpp) - ws;
+			final int top = (int)(Math.min(sy, Math.min(y1, y2)) / mpp) - hs;
+			final int bottom = (int)(Math.max(sy, Math.max(y1, y2)) / mpp) - hs;
+
+			final ConeStencils.Stencil stencil = stencils.get(bearing);
+			final double range = ranges[i];
+			final double g = strength(range);
+			for(int k = 0; k < stencil.cols.length; k++) {
+				final int w = stencil.cols[k], h = stencil.rows[k];
+				if(w < left || w > right || h < top || h > bottom) continue;
+				final int r = row - h, c = col + w;
+				if(r < 0 || c < 0 || r >= height || c >= width || !writer.owns(r, c)) continue;
+
+				// the stencil is slightly wider than the cone, keep the cells of this exact cone
+				final double dx = mpp * w - fx, dy = mpp * h - fy;
+				final double t = Math.sqrt(dx * dx + dy * dy);
+				if(dx * cos + dy * sin < t * COS_HALF_FOV) continue;
+
+				int prob = (int)((GridMap.INTRAVERSABLE - GridMap.TRAVERSABLE) *
+						(profile(range, g * stencil.gains[k], t) +
+								(double)writer.getData(r, c)/(double)(GridMap.INTRAVERSABLE - GridMap.TRAVERSABLE)));
+				if(prob > GridMap.INTRAVERSABLE) prob = GridMap.INTRAVERSABLE;
+				if(prob < GridMap.TRAVERSABLE) prob = GridMap.TRAVERSABLE;
+				writer.setData(r, c, (byte)prob);
+			}
+		}
+	}
+
 	public static double model(final double range, final double a, final double d) {
+		return profile(range, strength(range) * gain(a), d);
+	}
 
-		final double g = -0.01 * (range > Pioneer.SONAR_RANGE ? Pioneer.SONAR_RANGE : range) + 0.05;
-		final double n = 1.0 / (0.05 * 2.0 * Math.PI) * Math.exp(a*a/-2.0);
-		final double s = g * n;
+	/**
+	 * Sonar model: strength of a reading
+	 * @param range
+	 * @return
+	 */
+	static double strength(final double range) {
+		return -0.01 * (range > Pioneer.SONAR_RANGE ? Pioneer.SONAR_RANGE : range) + 0.05;
+	}
+
+	/**
+	 * Sonar model: gain at an angle from the sonar axis
+	 * @param a
+	 * @return
+	 */
+	static double gain(final double a) {
+		return 1.0 / (0.05 * 2.0 * Math.PI) * Math.exp(a*a/-2.0);
+	}
+
+	/**
+	 * Sonar model: change of occupancy along the sonar axis
+	 * @param range
+	 * @param s strength times gain
+	 * @param d distance from the sonar
+	 * @return
+	 */
+	static double profile(final double range, final double s, final double d) {
 		if ( d < range - D1 ) {
 			return -s;
 		} else if ( d < range + D1 ) {
@@ -0,0 +1,269 @@
+/**
+ *
+ */
+
+package localization;
+
+import java.util.Arrays;
+
+import common.GridMap;
+import common.Pioneer;
+import common.Utils;
+
+/**
+ * Occupancy of the local map kept in floating point, so repeated readings
+ * neither lose precision nor pin a cell for good. Cells accumulate sonar
+ * evidence on a log-odds scale, but saturating: each step is scaled by the
+ * distance to the limit it heads for, so steps towards a limit shrink and
+ * steps away from it grow. Readings therefore do not simply add up as
+ * log-odds, a cell approaches a limit without reaching it (it still exports
+ * as fully occupied or free) and a confident cell turns around quickly.
+ * The sonar model is evaluated without branches and the layer is exported
+ * on demand as map data (-100 to 100) into a grid map of the same size, for
+ * scoring and display.
+ * Not thread-safe, meant to be driven by the mapper thread.
+ * @author ziyan
+ *
+ */
+public class OccupancyLayer {
+	/**
+	 * Step per unit of the sonar model, before saturation
+	 */
+	public static final float SCALE = 6.0f;
+
+	/**
+	 * Values stay within [-LIMIT, LIMIT] and only the footprint reaches a limit,
+	 * a step towards a limit is scaled by the remaining distance to it (relative to LIMIT)
+	 */
+	public static final float LIMIT = 3.0f;
+
+	/**
+	 * Number of entries of the log-odds to map data table
+	 */
+	private static final int LEVELS = 4096;
+
+	/**
+	 * Sonar model setting, see <code>Mapper</code>
+	 */
+	private static final float D1 = 0.25f, D2 = 0.5f, D3 = 0.75f;
+
+	private static final double COS_HALF_FOV = Math.cos(Pioneer.SONAR_FOV / 2.0);
+
+	private final int width, height;
+	private final double mpp;
+	private final float[] odds;
+	private final ConeStencils stencils;
+	private final byte[] table;
+
+	// cells changed since the last export, may repeat
+	private int[] dirty;
+	private int dirties;
+
+	/**
+	 * Log-odds layer of a map
+	 * @param width pixel width
+	 * @param height pixel height
+	 * @param stencils cones built for the resolution of the layer, may be shared
+	 */
+	public OccupancyLayer(final int width, final int height, final ConeStencils stencils) {
+		this.width = width;
+		this.height = height;
+		this.mpp = stencils.getMPP();
+		this.odds = new float[width * height];
+		this.stencils = stencils;
+		this.dirty = new int[1 << 14];
+		this.dirties = 0;
+
+		// occupancy probability scaled so that -LIMIT and LIMIT are the map limits
+		this.table = new byte[LEVELS + 1];
+		final double full = Math.tanh(LIMIT / 2.0);
+		for(int i = 0; i <= LEVELS; i++) {
+			final double l = -LIMIT + 2.0 * LIMIT * i / LEVELS;
+			table[i] = (byte)Math.round(GridMap.INTRAVERSABLE * Math.tanh(l / 2.0) / full);
+		}
+	}
+
+	/**
+	 * Accumulated value of a cell, 0 if unknown
+	 * @param r
+	 * @param c
+	 * @return
+	 */
+	public float get(final int r, final int c) {
+		return odds[r * width + c];
+	}
+
+	/**
+	 * Map data of a cell, 0 if unknown
+	 * @param r
+	 * @param c
+	 * @return
+	 */
+	public byte getData(final int r, final int c) {
+		return data(odds[r * width + c]);
+	}
+
+	private byte data(final float l) {
+		return table[(int)((l + LIMIT) * (LEVELS / (2.0f * LIMIT)) + 0.5f)];
+	}
+
+	/**
+	 * Mark the cells under the robot as free
+	 * @param x
+	 * @param y
+	 */
+	public void free(final double x, final double y) {
+		final FootprintMask mask = FootprintMask.get(mpp);
+		final int row = height - ((int)Math.floor(y / mpp) + height / 2);
+		final int col = (int)Math.floor(x / mpp) + width / 2;
+		for(int h = -mask.reach; h <= mask.reach; h++) {
+			final int r = row - h;
+			if(r < 0 || r >= height) continue;
+			final int from = Math.max(0, col + mask.first[h + mask.reach]);
+			final int to = Math.min(width - 1, col + mask.last[h + mask.reach]);
+			if(from > to) continue;
+			Arrays.fill(odds, r * width + from, r * width + to + 1, -LIMIT);
+			for(int c = from; c <= to; c++)
+				mark(r * width + c);
+		}
+	}
+
+	/**
+	 * Add sonar readings
+	 * @param ranges
+	 * @param x
+	 * @param y
+	 * @param yaw
+	 */
+	public void update(final float[] ranges, final double x, final double y, final double yaw) {
+		for(int i = 0; i < ranges.length && i < Pioneer.SONAR_COUNT; i++) {
+			final double bearing = Utils.normalize(Pioneer.SONAR_BEARINGS[i] + yaw);
+			final double sx = x + Pioneer.SONAR_OFFSETS[i] * Math.cos(bearing);
+			final double sy = y + Pioneer.SONAR_OFFSETS[i] * Math.sin(bearing);
+			final int ws = (int)Math.floor(sx / mpp), hs = (int)Math.floor(sy / mpp);
+			final int row = height - (hs + height / 2), col = ws + width / 2;
+			final ConeStencils.Stencil stencil = stencils.get(bearing);
+			final double fx = sx - mpp * ws, fy = sy - mpp * hs;
+			final float cos = (float)Math.cos(bearing), sin = (float)Math.sin(bearing);
+			if(row - stencil.top < 0 || row - stencil.bottom >= height || col + stencil.left < 0 || col + stencil.right >= width)
+				clipped(stencil, ranges[i], fx, fy, cos, sin, row, col);
+			else
+				cone(stencil, ranges[i], fx, fy, cos, sin, row * width + col);
+		}
+	}
+
+	/**
+	 * Add one reading, every cell of the stencil is inside the map
+	 * @param stencil
+	 * @param range
+	 * @param fx position of the sonar in its cell
+	 * @param fy position of the sonar in its cell
+	 * @param cos direction of the sonar
+	 * @param sin direction of the sonar
+	 * @param base index of the sonar cell
+	 */
+	private void cone(final ConeStencils.Stencil stencil, final float range, final double fx, final double fy,
+			final float cos, final float sin, final int base) {
+		final float g = (float)Mapper.strength(range) * SCALE;
+		final float m = (float)mpp, ox = (float)fx, oy = (float)fy;
+		final int[] cols = stencil.cols, rows = stencil.rows;
+		final float[] gains = stencil.gains;
+		// cells beyond the reading do not change, the sonar is within half a diagonal of the cell center
+		final int n = stencil.count(range + D3 + m);
+		if(dirties + n > dirty.length) dirty = Arrays.copyOf(dirty, Math.max(dirty.length * 2, dirties + n));
+		for(int k = 0; k < n; k++) {
+			final int i = base - rows[k] * width + cols[k];
+			odds[i] = add(odds[i], step(m * cols[k] - ox, m * rows[k] - oy, range, g * gains[k], cos, sin));
+			dirty[dirties + k] = i;
+		}
+		dirties += n;
+	}
+
+	/**
+	 * Add one reading near the edge of the map, cells outside of the map are skipped
+	 * @param stencil
+	 * @param range
+	 * @param fx position of the sonar in its cell
+	 * @param fy position of the sonar in its cell
+	 * @param cos direction of the sonar
+	 * @param sin direction of the sonar
+	 * @param row row of the sonar cell
+	 * @param col column of the sonar cell
+	 */
+	private void clipped(final ConeStencils.Stencil stencil, final float range, final double fx, final double fy,
+			final float cos, final float sin, final int row, final int col) {
+		final float g = (float)Mapper.strength(range) * SCALE;
+		final float m = (float)mpp, ox = (float)fx, oy = (float)fy;
+		final int[] cols = stencil.cols, rows = stencil.rows;
+		final float[] gains = stencil.gains;
+		final int n = stencil.count(range + D3 + m);
+		for(int k = 0; k < n; k++) {
+			final int r = row - rows[k], c = col + cols[k];
+			if(r < 0 || c < 0 || r >= height || c >= width) continue;
+			final int i = r * width + c;
+			odds[i] = add(odds[i], step(m * cols[k] - ox, m * rows[k] - oy, range, g * gains[k], cos, sin));
+			mark(i);
+		}
+	}
+
+	/**
+	 * Sonar model at a cell, without branches
+	 * @param dx offset of the cell from the sonar
+	 * @param dy offset of the cell from the sonar
+	 * @param range
+	 * @param g strength times gain, scaled to log-odds
+	 * @param cos direction of the sonar
+	 * @param sin direction of the sonar
+	 * @return
+	 */
+	private static float step(final float dx, final float dy, final float range, final float g, final float cos, final float sin) {
+		final float t = (float)Math.sqrt(dx * dx + dy * dy);
+		// sum of two clamped ramps: -1 before the reading, up to 1 around it, back to 0 behind it
+		final float u = t - range;
+		final float p = u / D1, q = (u - D2) / (D3 - D2);
+		final float f = (p < -1.0f ? -1.0f : p > 1.0f ? 1.0f : p) - (q < 0.0f ? 0.0f : q > 1.0f ? 1.0f : q);
+		// cells of the stencil outside of the exact cone do not change
+		final float inside = dx * cos + dy * sin >= t * (float)COS_HALF_FOV ? 1.0f : 0.0f;
+		return inside * g * f;
+	}
+
+	/**
+	 * Apply a step to a log-odds value, scaled by the distance to the limit it heads for
+	 * @param l
+	 * @param step
+	 * @return
+	 */
+	private static float add(final float l, final float step) {
+		final float v = l + step - Math.abs(step) * l / LIMIT;
+		return v < -LIMIT ? -LIMIT : v > LIMIT ? LIMIT : v;
+	}
+
+	private void mark(final int i) {
+		if(dirties == dirty.length) dirty = Arrays.copyOf(dirty, dirty.length * 2);
+		dirty[dirties++] = i;
+	}
+
+	/**
+	 * Write the cells changed since the last export into a map
+	 * @param map map of the same size and resolution
+	 */
+	public void export(final GridMap map) {
+		for(int k = 0; k < dirties; k++) {
+			final int i = dirty[k];
+			final float l = odds[i];
+			if(l == 0.0f) continue;
+			map.setData(i / width, i % width, data(l));
+		}
+		dirties = 0;
+	}
+
+	/**
+	 * Write every known cell into a map
+	 * @param map map of the same size and resolution
+	 */
+	public void exportAll(final GridMap map) {
+		for(int i = 0; i < odds.length; i++)
+			if(odds[i] != 0.0f) map.setData(i / width, i % width, data(odds[i]));
+		dirties = 0;
+	}
+}
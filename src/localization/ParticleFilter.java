@@ -0,0 +1,351 @@
+/**
+ *
+ */
+
+package localization;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import common.GridMap;
+import common.Parallel;
+import common.Position;
+import common.Utils;
+
+/**
+ * Monte Carlo localization against the floorplan. Particles are kept in
+ * parallel primitive arrays, weighted in parallel against a likelihood
+ * field and resampled by KLD-sampling, which draws only as many particles
+ * as the spread of the drawn ones calls for.
+ * Not thread-safe, meant to be driven by a single thread.
+ * @author ziyan
+ *
+ */
+public class ParticleFilter {
+	/**
+	 * Motion noise: translation error per meter travelled
+	 */
+	private static final double ALPHA_TRANS = 0.1;
+
+	/**
+	 * Motion noise: rotation error per radian turned
+	 */
+	private static final double ALPHA_ROT = 0.1;
+
+	/**
+	 * KLD-sampling: maximum error between sampled and true distribution
+	 */
+	private static final double KLD_EPSILON = 0.05;
+
+	/**
+	 * KLD-sampling: upper 1 - delta quantile of the normal distribution (delta = 0.01)
+	 */
+	private static final double KLD_Z = 2.326;
+
+	/**
+	 * KLD-sampling: histogram bin size (meter)
+	 */
+	private static final double BIN_SIZE = 0.5;
+
+	/**
+	 * KLD-sampling: histogram bin size (radian)
+	 */
+	private static final double BIN_ANGLE = Utils.dtor(10.0);
+
+	/**
+	 * Number of particles handled by one parallel band
+	 */
+	private static final int BAND_PARTICLES = 4096;
+
+	private final LikelihoodField field;
+	private final GridMap floorplan;
+	private final int minParticles, maxParticles;
+	private final Random random;
+
+	// particles, only the first count entries are used
+	private double[] x, y, yaw;
+	private final double[] weight;
+	private double[] nx, ny, nyaw;
+	private int count;
+
+	// histogram used by KLD-sampling
+	private final long[] bins;
+	private final boolean[] used;
+
+	// first particle of each slice of the cumulative weights, speeds up drawing
+	private final int[] guide;
+
+	// last odometry reading
+	private boolean moved;
+	private double ox, oy, oyaw;
+
+	/**
+	 * Particle filter
+	 * @param field sensor model of the floorplan to localize against
+	 * @param minParticles
+	 * @param maxParticles
+	 */
+	public ParticleFilter(final LikelihoodField field, final int minParticles, final int maxParticles) {
+		this.field = field;
+		this.floorplan = field.getFloorplan();
+		this.minParticles = minParticles;
+		this.maxParticles = maxParticles;
+		this.random = new Random();
+		this.x = new double[maxParticles];
+		this.y = new double[maxParticles];
+		this.yaw = new double[maxParticles];
+		this.weight = new double[maxParticles];
+		this.nx = new double[maxParticles];
+		this.ny = new double[maxParticles];
+		this.nyaw = new double[maxParticles];
+		this.bins = new long[2 * maxParticles];
+		this.used = new boolean[2 * maxParticles];
+		this.guide = new int[maxParticles];
+		this.count = 0;
+		this.moved = false;
+	}
+
+	/**
+	 * Spread particles around known candidates
+	 * @param candidates
+	 * @param spread standard deviation of position (meter)
+	 * @param spreadYaw standard deviation of yaw (radian)
+	 */
+	public void initialize(final Position[] candidates, final double spread, final double spreadYaw) {
+		count = maxParticles;
+		for(int i = 0; i < count; i++) {
+			final Position p = candidates[i % candidates.length];
+			x[i] = p.getX() + random.nextGaussian() * spread;
+			y[i] = p.getY() + random.nextGaussian() * spread;
+			yaw[i] = Utils.normalize(p.getYaw() + random.nextGaussian() * spreadYaw);
+			weight[i] = 1.0 / count;
+		}
+		moved = false;
+	}
+
+	/**
+	 * Spread particles uniformly over the traversable part of the floorplan
+	 */
+	public void initialize() {
+		count = 0;
+		while(count < maxParticles) {
+			final int r = random.nextInt(floorplan.getHeight());
+			final int c = random.nextInt(floorplan.getWidth());
+			if(floorplan.getData(r, c) != GridMap.TRAVERSABLE) continue;
+			x[count] = floorplan.getMPP() * (c - floorplan.getWidth() / 2 + random.nextDouble());
+			y[count] = floorplan.getMPP() * ((floorplan.getHeight() - r) - floorplan.getHeight() / 2 + random.nextDouble());
+			yaw[count] = Utils.normalize(random.nextDouble() * 2.0 * Math.PI);
+			count++;
+		}
+		for(int i = 0; i < count; i++)
+			weight[i] = 1.0 / count;
+		moved = false;
+	}
+
+	/**
+	 * Number of particles in use
+	 * @return
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Incorporate a new odometry reading and sonar scan
+	 * @param ranges sonar readings
+	 * @param x odometry
+	 * @param y odometry
+	 * @param yaw odometry
+	 */
+	public void update(final float[] ranges, final double x, final double y, final double yaw) {
+		if(count == 0) return;
+		if(moved) {
+			// odometry change in the previous robot frame
+			final double c = Math.cos(-oyaw), s = Math.sin(-oyaw);
+			predict(c * (x - ox) - s * (y - oy), s * (x - ox) + c * (y - oy), Utils.normalize(yaw - oyaw));
+		}
+		ox = x;
+		oy = y;
+		oyaw = yaw;
+		moved = true;
+		weigh(ranges);
+		resample();
+	}
+
+	/**
+	 * Move every particle by an odometry change, with noise
+	 * @param dx forward motion in the robot frame
+	 * @param dy sideway motion in the robot frame
+	 * @param dyaw rotation
+	 */
+	private void predict(final double dx, final double dy, final double dyaw) {
+		final double trans = Utils.elength(dx, dy);
+		final double sigmaTrans = ALPHA_TRANS * trans + 0.01;
+		final double sigmaRot = ALPHA_ROT * Math.abs(dyaw) + 0.02 * trans + 0.005;
+		Parallel.run(0, count, BAND_PARTICLES, new Parallel.Body() {
+			public void run(final int from, final int to) {
+				final ThreadLocalRandom random = ThreadLocalRandom.current();
+				for(int i = from; i < to; i++) {
+					final double c = Math.cos(yaw[i]), s = Math.sin(yaw[i]);
+					final double ddx = dx + random.nextGaussian() * sigmaTrans;
+					final double ddy = dy + random.nextGaussian() * sigmaTrans;
+					x[i] += c * ddx - s * ddy;
+					y[i] += s * ddx + c * ddy;
+					yaw[i] = Utils.normalize(yaw[i] + dyaw + random.nextGaussian() * sigmaRot);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Weight every particle by how well the scan fits the floorplan
+	 * @param ranges
+	 */
+	private void weigh(final float[] ranges) {
+		Parallel.run(0, count, BAND_PARTICLES, new Parallel.Body() {
+			public void run(final int from, final int to) {
+				for(int i = from; i < to; i++)
+					weight[i] = likelihood(ranges, x[i], y[i], yaw[i]);
+			}
+		});
+
+		// normalize in the log domain to avoid underflow
+		double max = Double.NEGATIVE_INFINITY;
+		for(int i = 0; i < count; i++)
+			if(weight[i] > max) max = weight[i];
+		if(max == Double.NEGATIVE_INFINITY) {
+			// nothing fits, keep the particles as they are
+			for(int i = 0; i < count; i++)
+				weight[i] = 1.0 / count;
+			return;
+		}
+		double total = 0.0;
+		for(int i = 0; i < count; i++) {
+			weight[i] = Math.exp(weight[i] - max);
+			total += weight[i];
+		}
+		for(int i = 0; i < count; i++)
+			weight[i] /= total;
+	}
+
+	/**
+	 * Log likelihood of a scan from a pose
+	 * @param ranges
+	 * @param x
+	 * @param y
+	 * @param yaw
+	 * @return
+	 */
+	double likelihood(final float[] ranges, final double x, final double y, final double yaw) {
+		final int r = floorplan.getRow(y), c = floorplan.getCol(x);
+		if(r < 0 || c < 0 || r >= floorplan.getHeight() || c >= floorplan.getWidth()
+				|| floorplan.getData(r, c) != GridMap.TRAVERSABLE) return Double.NEGATIVE_INFINITY;
+		return field.score(ranges, x, y, yaw);
+	}
+
+	/**
+	 * KLD-sampling: particles are drawn one at a time from the weighted set
+	 * and the bins they fall in are counted, drawing stops once there are
+	 * enough particles for the number of bins seen so far
+	 */
+	private void resample() {
+		// cumulative weights, searched for each draw
+		for(int i = 1; i < count; i++)
+			weight[i] += weight[i - 1];
+		final double total = weight[count - 1];
+		// guide table: first particle of each of count equal slices of the total
+		for(int j = 0, i = 0; j < count; j++) {
+			final double u = total * j / count;
+			while(i < count - 1 && weight[i] <= u) i++;
+			guide[j] = i;
+		}
+		Arrays.fill(used, false);
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		int k = 0, n = 0;
+		while(n < maxParticles && (n < minParticles || n < kld(k))) {
+			final int i = draw(random.nextDouble() * total);
+			nx[n] = x[i];
+			ny[n] = y[i];
+			nyaw[n] = yaw[i];
+			if(insert(x[i], y[i], yaw[i])) k++;
+			n++;
+		}
+		double[] t;
+		t = x; x = nx; nx = t;
+		t = y; y = ny; ny = t;
+		t = yaw; yaw = nyaw; nyaw = t;
+		count = n;
+		for(int m = 0; m < n; m++)
+			weight[m] = 1.0 / n;
+	}
+
+	/**
+	 * First particle whose cumulative weight exceeds a value
+	 * @param u
+	 * @return
+	 */
+	private int draw(final double u) {
+		// the answer lies between the first particles of this slice and of the next
+		final int j = Math.min(count - 1, (int)(u / weight[count - 1] * count));
+		int low = guide[j], high = j + 1 < count ? guide[j + 1] : count - 1;
+		while(low < high) {
+			final int mid = (low + high) >>> 1;
+			if(weight[mid] > u) high = mid;
+			else low = mid + 1;
+		}
+		return low;
+	}
+
+	/**
+	 * Add the histogram bin of a pose
+	 * @param x
+	 * @param y
+	 * @param yaw
+	 * @return true if the bin was empty
+	 */
+	private boolean insert(final double x, final double y, final double yaw) {
+		final long key = (((long)Math.floor(x / BIN_SIZE)) & 0x1fffffL) << 42
+				| (((long)Math.floor(y / BIN_SIZE)) & 0x1fffffL) << 21
+				| (((long)Math.floor((yaw + Math.PI) / BIN_ANGLE)) & 0x1fffffL);
+		// open addressing
+		int h = (int)((key * 0x9E3779B97F4A7C15L) >>> 33) % bins.length;
+		while(used[h] && bins[h] != key)
+			h = (h + 1) % bins.length;
+		if(used[h]) return false;
+		used[h] = true;
+		bins[h] = key;
+		return true;
+	}
+
+	/**
+	 * Number of particles needed so that the error is below KLD_EPSILON
+	 * with probability 1 - delta
+	 * @param k number of bins with support
+	 * @return
+	 */
+	static int kld(final int k) {
+		if(k <= 1) return 1;
+		final double a = 2.0 / (9.0 * (k - 1));
+		final double b = 1.0 - a + Math.sqrt(a) * KLD_Z;
+		return (int)Math.ceil((k - 1) / (2.0 * KLD_EPSILON) * b * b * b);
+	}
+
+	/**
+	 * Weighted mean pose of the particles, its weight is the concentration
+	 * of the particle headings (1.0 when they all agree)
+	 * @return
+	 */
+	public Position getEstimate() {
+		double sx = 0.0, sy = 0.0, sc = 0.0, ss = 0.0;
+		for(int i = 0; i < count; i++) {
+			sx += weight[i] * x[i];
+			sy += weight[i] * y[i];
+			sc += weight[i] * Math.cos(yaw[i]);
+			ss += weight[i] * Math.sin(yaw[i]);
+		}
+		final Position estimate = new Position("mcl", sx, sy, Math.atan2(ss, sc));
+		estimate.setWeight(Utils.elength(sc, ss));
+		return estimate;
+	}
+}
@@ -0,0 +1,35 @@
+/**
+ *
+ */
+
+package localization;
+
+import common.BeamGeometry;
+import common.GridMap;
+import common.MapWriter;
+
+/**
+ * Inverse sensor model of a range sensor, turns one scan into map updates
+ * @author ziyan
+ *
+ */
+public interface RangeSensorModel {
+	/**
+	 * Beams the readings of a scan belong to
+	 * @return
+	 */
+	public BeamGeometry getGeometry();
+
+	/**
+	 * Update the map with one scan, either the whole map by the writer, which
+	 * brackets it with <code>beginUpdate</code> and <code>endUpdate</code>,
+	 * or the cells of one shard, by several threads at once with the shards
+	 * of a map, one per thread
+	 * @param writer the map, or a shard of it
+	 * @param ranges one reading per beam
+	 * @param x robot position
+	 * @param y robot position
+	 * @param yaw robot heading
+	 */
+	public void map(MapWriter writer, float[] ranges, double x, double y, double yaw);
+}
@@ -0,0 +1,104 @@
+/**
+ *
+ */
+
+package localization;
+
+import common.BeamGeometry;
+import common.GridMap;
+import common.MapWriter;
+
+/**
+ * Ray casting model for narrow beams such as a laser scanner: the cells a
+ * beam crosses (Bresenham line) become more likely free and the cell it ends
+ * in more likely occupied, unless the reading is out of range. Integer
+ * stepping only, so hundreds of beams per scan are cheap.
+ * @author ziyan
+ *
+ */
+public class RayCastModel implements RangeSensorModel {
+	/**
+	 * Change of map data of a cell a beam crosses
+	 */
+	public static final int MISS = -10;
+
+	/**
+	 * Change of map data of the cell a beam ends in
+	 */
+	public static final int HIT = 40;
+
+	private final BeamGeometry geometry;
+
+	/**
+	 * Ray casting model
+	 * @param geometry
+	 */
+	public RayCastModel(final BeamGeometry geometry) {
+		this.geometry = geometry;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see localization.RangeSensorModel#getGeometry()
+	 */
+	public BeamGeometry getGeometry() {
+		return geometry;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see localization.RangeSensorModel#map(common.MapWriter, float[], double, double, double)
+	 */
+	public void map(final MapWriter writer, final float[] ranges, final double x, final double y, final double yaw) {
+		final GridMap map = writer.getMap();
+		final double max = geometry.getRange();
+		for(int i = 0; i < ranges.length && i < geometry.getCount(); i++) {
+			final double bearing = geometry.getBearing(i) + yaw;
+			final double cos = Math.cos(bearing), sin = Math.sin(bearing);
+			final double sx = x + geometry.getOffset(i) * cos;
+			final double sy = y + geometry.getOffset(i) * sin;
+			final boolean hit = ranges[i] < max;
+			final double range = hit ? ranges[i] : max;
+			cast(writer, map.getRow(sy), map.getCol(sx), map.getRow(sy + range * sin), map.getCol(sx + range * cos), hit);
+		}
+	}
+
+	/**
+	 * Update the cells along one beam
+	 * @param writer the map, or a shard of it
+	 * @param r0 sensor cell
+	 * @param c0 sensor cell
+	 * @param r1 end cell
+	 * @param c1 end cell
+	 * @param hit whether the end cell is an obstacle
+	 */
+	private static void cast(final MapWriter writer, final int r0, final int c0, final int r1, final int c1, final boolean hit) {
+		final int width = writer.getMap().getWidth(), height = writer.getMap().getHeight();
+		if(r0 < 0 || c0 < 0 || r0 >= height || c0 >= width) return;
+		final int dr = Math.abs(r1 - r0), dc = Math.abs(c1 - c0);
+		final int sr = r0 < r1 ? 1 : -1, sc = c0 < c1 ? 1 : -1;
+		int r = r0, c = c0, error = dc - dr;
+		while(r != r1 || c != c1) {
+			if(writer.owns(r, c)) update(writer, r, c, MISS);
+			final int e2 = 2 * error;
+			if(e2 > -dr) {
+				error -= dr;
+				c += sc;
+			}
+			if(e2 < dc) {
+				error += dc;
+				r += sr;
+			}
+			// a line that left the map never comes back
+			if(r < 0 || c < 0 || r >= height || c >= width) return;
+		}
+		if(writer.owns(r, c)) update(writer, r, c, hit ? HIT : MISS);
+	}
+
+	private static void update(final MapWriter writer, final int r, final int c, final int delta) {
+		int d = writer.getData(r, c) + delta;
+		if(d > GridMap.INTRAVERSABLE) d = GridMap.INTRAVERSABLE;
+		if(d < GridMap.TRAVERSABLE) d = GridMap.TRAVERSABLE;
+		writer.setData(r, c, (byte)d);
+	}
+}
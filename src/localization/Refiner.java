@@ -0,0 +1,157 @@
+/**
+ *
+ */
+
+package localization;
+
+import java.util.concurrent.locks.LockSupport;
+
+import common.Position;
+import common.Utils;
+
+/**
+ * Refiner thread: corrects the odometry drift of the start position chosen
+ * by the localizer by matching recent scans against the floorplan, off the
+ * control loop. Matching only starts once the localizer has converged and
+ * always searches around the position it chose, so the correction stays
+ * within the search window of that position.
+ * @author ziyan
+ *
+ */
+public class Refiner extends Thread {
+	/**
+	 * Refine the coordinate conversion every this many scans
+	 */
+	private static final int MATCH_INTERVAL = 10;
+
+	/**
+	 * Number of recent scans matched together
+	 */
+	private static final int MATCH_SCANS = 20;
+
+	/**
+	 * Scan matching search window (meter)
+	 */
+	private static final double MATCH_WINDOW = 0.5;
+
+	/**
+	 * Scan matching search window (radian)
+	 */
+	private static final double MATCH_WINDOW_YAW = Utils.dtor(5.0);
+
+	/**
+	 * Time allowed for scan matching (millisecond)
+	 */
+	private static final long MATCH_BUDGET = 20;
+
+	/**
+	 * Number of scans that can wait for the refiner
+	 */
+	private static final int QUEUE_CAPACITY = 64;
+
+	/**
+	 * Transform refined from a localizer estimate
+	 */
+	private static final class Correction {
+		final Estimate base;
+		final Position origin;
+
+		Correction(final Estimate base, final Position origin) {
+			this.base = base;
+			this.origin = origin;
+		}
+	}
+
+	private final Localizer localizer;
+	private final ScanMatcher matcher;
+	private final ScanQueue queue;
+	private volatile Correction correction;
+	private volatile boolean done;
+
+	/**
+	 * Refiner thread
+	 * @param localizer localizer whose start position is refined
+	 * @param field likelihood field of the floorplan
+	 */
+	public Refiner(final Localizer localizer, final LikelihoodField field) {
+		this.localizer = localizer;
+		this.matcher = new ScanMatcher(field, MATCH_SCANS, 4);
+		this.queue = new ScanQueue(QUEUE_CAPACITY);
+		this.correction = null;
+		this.done = false;
+		this.setPriority(4);
+		this.start();
+	}
+
+	/**
+	 * Add a scan, to be called from a single thread
+	 * @param ranges sonar readings, copied
+	 * @param x odometry
+	 * @param y odometry
+	 * @param yaw odometry
+	 * @return false if the refiner is too far behind and the scan was dropped
+	 */
+	public boolean update(final float[] ranges, final double x, final double y, final double yaw) {
+		final boolean queued = queue.offer(ranges, x, y, yaw);
+		LockSupport.unpark(this);
+		return queued;
+	}
+
+	/**
+	 * Position of the odometry origin in the floorplan
+	 * @param estimate current estimate of the localizer
+	 * @return the refined position if it was refined from the same start
+	 * position, the position of the estimate otherwise
+	 */
+	public Position getOrigin(final Estimate estimate) {
+		final Correction c = correction;
+		return c != null && c.base.isSamePosition(estimate) ? c.origin : estimate.getPosition();
+	}
+
+	/**
+	 * Scans waiting for the refiner
+	 * @return
+	 */
+	public ScanQueue getQueue() {
+		return queue;
+	}
+
+	/**
+	 * Shutdown gracefully
+	 */
+	public void shutdown() {
+		this.done = true;
+		LockSupport.unpark(this);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 */
+	public void run() {
+		final ScanQueue.Handler handler = new ScanQueue.Handler() {
+			private int scans = 0;
+
+			public void begin(final int count) { }
+
+			public void scan(final float[] ranges, final double x, final double y, final double yaw) {
+				matcher.add(ranges, x, y, yaw);
+				scans++;
+			}
+
+			public void end() {
+				if(scans < MATCH_INTERVAL) return;
+				final Estimate estimate = localizer.getEstimate();
+				if(!estimate.isConverged()) return;
+				scans = 0;
+				// search around the localizer's choice every time, so corrections never add up
+				correction = new Correction(estimate,
+						matcher.match(estimate.getPosition(), MATCH_WINDOW, MATCH_WINDOW_YAW, MATCH_BUDGET));
+			}
+		};
+		while(!done) {
+			if(queue.drain(handler) == 0) LockSupport.park(this);
+		}
+		System.out.println("Refiner: " + queue);
+	}
+}
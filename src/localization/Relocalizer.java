@@ -0,0 +1,173 @@
+/**
+ *
+ */
+
+package localization;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import common.FFT;
+import common.GridMap;
+import common.Parallel;
+import common.Position;
+import common.Utils;
+
+/**
+ * Global relocalization: the local map is rotated into each yaw bin and
+ * cross-correlated with the whole floorplan using FFTs, which scores every
+ * translation at once. Known cells count +1 when they agree with the
+ * floorplan and -1 when they do not, the same ordering as
+ * <code>GridMap.diff</code> for a fixed overlap. Yaw bins are spread
+ * across cores.
+ * @author ziyan
+ *
+ */
+public class Relocalizer {
+	/**
+	 * Peaks closer than this to a better one are the same pose (meter)
+	 */
+	private static final double SEPARATION = 1.0;
+
+	private final GridMap floorplan;
+	private final int bins;
+	private final int fw, fh;
+	private final double fmpp;
+
+	/**
+	 * Relocalizer
+	 * @param floorplan
+	 * @param bins number of yaw bins over a full turn
+	 */
+	public Relocalizer(final GridMap floorplan, final int bins) {
+		this.floorplan = floorplan;
+		this.bins = bins;
+		this.fw = floorplan.getWidth();
+		this.fh = floorplan.getHeight();
+		this.fmpp = floorplan.getMPP();
+	}
+
+	/**
+	 * Most likely start positions of a local map in the floorplan
+	 * @param local local map, its origin is the start position
+	 * @param k number of positions
+	 * @return at most k positions from best to worst, weighted by the fraction of agreeing cells
+	 */
+	public Position[] search(final GridMap local, final int k) {
+		final int top = local.getTop(), left = local.getLeft();
+		final int bottom = local.getBottom(), right = local.getRight();
+		final double mpp = local.getMPP();
+
+		// the rotated local map fits in a square of its diagonal
+		final int reach = (int)Math.ceil(Utils.elength(bottom - top + 1, right - left + 1) * mpp / fmpp) + 2;
+		final int width = FFT.size(fw + reach), height = FFT.size(fh + reach);
+
+		// transform of the floorplan, shared by every yaw bin
+		final float[] fre = new float[width * height], fim = new float[width * height];
+		for(int r = 0; r < fh; r++)
+			for(int c = 0; c < fw; c++)
+				fre[r * width + c] = floorplan.getData(r, c) / (float)GridMap.INTRAVERSABLE;
+		FFT.transform(fre, fim, width, height, false);
+
+		final List<Position> peaks = Collections.synchronizedList(new ArrayList<Position>());
+		Parallel.run(0, bins, 1, new Parallel.Body() {
+			public void run(final int from, final int to) {
+				final float[] re = new float[width * height], im = new float[width * height];
+				for(int b = from; b < to; b++)
+					correlate(local, Utils.normalize(2.0 * Math.PI * b / bins), re, im, fre, fim, width, height, k, peaks);
+			}
+		});
+
+		// best peaks, skipping the ones that are the same pose as a better one
+		Collections.sort(peaks);
+		final double step = 2.0 * Math.PI / bins;
+		final List<Position> result = new ArrayList<Position>();
+		for(final Position p : peaks) {
+			boolean distinct = true;
+			for(final Position q : result)
+				if(Utils.elength(p.getX() - q.getX(), p.getY() - q.getY()) < SEPARATION
+						&& Math.abs(Utils.normalize(p.getYaw() - q.getYaw())) < 1.5 * step) {
+					distinct = false;
+					break;
+				}
+			if(!distinct) continue;
+			result.add(p);
+			if(result.size() >= k) break;
+		}
+		return result.toArray(new Position[result.size()]);
+	}
+
+	/**
+	 * Score every translation for one yaw and collect the best peaks
+	 * @param local
+	 * @param yaw
+	 * @param re work buffer
+	 * @param im work buffer
+	 * @param fre transform of the floorplan
+	 * @param fim transform of the floorplan
+	 * @param width padded width
+	 * @param height padded height
+	 * @param k number of peaks
+	 * @param peaks
+	 */
+	private void correlate(final GridMap local, final double yaw, final float[] re, final float[] im,
+			final float[] fre, final float[] fim, final int width, final int height, final int k, final List<Position> peaks) {
+		final double mpp = local.getMPP();
+		final int cx = local.getWidth() / 2, cy = local.getHeight() - local.getHeight() / 2;
+		final double cos = Math.cos(yaw), sin = Math.sin(yaw);
+
+		// rotated local map, offsets from the start cell wrapped into the padded grid
+		Arrays.fill(re, 0.0f);
+		Arrays.fill(im, 0.0f);
+		int known = 0;
+		for(int r = local.getTop(); r <= local.getBottom(); r++) {
+			final double my = mpp * (cy - r);
+			for(int c = local.getLeft(), i = local.getIndex(r, local.getLeft()); c <= local.getRight(); c++, i++) {
+				final byte value = local.getData(i);
+				if(value == 0) continue;
+				final double mx = mpp * (c - cx);
+				final int dc = (int)Math.round((cos * mx - sin * my) / fmpp);
+				final int dr = -(int)Math.round((sin * mx + cos * my) / fmpp);
+				re[((dr + height) % height) * width + ((dc + width) % width)] += value / (float)GridMap.INTRAVERSABLE;
+				known++;
+			}
+		}
+		if(known == 0) return;
+		FFT.transform(re, im, width, height, false);
+
+		// correlation: conjugate of the template times the floorplan
+		for(int i = 0; i < re.length; i++) {
+			final float r = re[i] * fre[i] + im[i] * fim[i];
+			final float m = re[i] * fim[i] - im[i] * fre[i];
+			re[i] = r;
+			im[i] = m;
+		}
+		FFT.transform(re, im, width, height, true, fh);
+
+		// re[t] is now the agreement with the start cell at floorplan cell t,
+		// the robot started on traversable ground
+		final int radius = (int)Math.ceil(SEPARATION / fmpp);
+		for(int n = 0; n < k; n++) {
+			float best = Float.NEGATIVE_INFINITY;
+			int br = -1, bc = -1;
+			for(int r = 0; r < fh; r++)
+				for(int c = 0; c < fw; c++)
+					if(re[r * width + c] > best && floorplan.getData(r, c) == GridMap.TRAVERSABLE) {
+						best = re[r * width + c];
+						br = r;
+						bc = c;
+					}
+			if(br < 0) break;
+			final Position peak = new Position("r" + Math.round(Utils.rtod(yaw)) + "_" + n,
+					fmpp * (bc - fw / 2 + 0.5), fmpp * ((fh - br) - fh / 2 + 0.5), yaw);
+			peak.setWeight(best / known);
+			peaks.add(peak);
+			// suppress the neighborhood of the peak
+			for(int r = Math.max(0, br - radius); r <= Math.min(fh - 1, br + radius); r++)
+				for(int c = Math.max(0, bc - radius); c <= Math.min(fw - 1, bc + radius); c++)
+					re[r * width + c] = Float.NEGATIVE_INFINITY;
+		}
+	}
+}
@@ -0,0 +1,285 @@
+/**
+ *
+ */
+
+package localization;
+
+import java.util.Arrays;
+
+import common.GridMap;
+import common.Parallel;
+import common.Pioneer;
+import common.Position;
+import common.Utils;
+
+/**
+ * Correlative scan matcher refining the transform from odometry to floorplan
+ * coordinates. The endpoints of the last few scans are matched against the
+ * likelihood field over an (x, y, yaw) window around the current transform,
+ * translations are searched by branch and bound over precomputed tables
+ * where level k holds the maximum of the field over 2^k by 2^k cells, so a
+ * coarse score bounds every finer translation below it. The search stops at
+ * a deadline and returns the best transform found so far.
+ * Not thread-safe, meant to be driven by a single thread.
+ * @author ziyan
+ *
+ */
+public class ScanMatcher {
+	private final LikelihoodField field;
+	private final int width, height, levels;
+	private final double mpp;
+	private final float outside;
+	private final float[][] tables;
+
+	// sonar endpoints of the last scans in odometry coordinate, NaN if none
+	private final double[] px, py;
+	private int next;
+	private double ox, oy;
+
+	// best transform found by the current search
+	private volatile double bestScore;
+	private int bestYaw, bestRow, bestCol;
+	private long deadline;
+
+	/**
+	 * Scan matcher
+	 * @param field likelihood field of the floorplan
+	 * @param scans number of recent scans matched together
+	 * @param levels number of table levels, translations are searched in
+	 * blocks of up to 2^levels cells
+	 */
+	public ScanMatcher(final LikelihoodField field, final int scans, final int levels) {
+		this.field = field;
+		final GridMap floorplan = field.getFloorplan();
+		this.width = floorplan.getWidth();
+		this.height = floorplan.getHeight();
+		this.mpp = floorplan.getMPP();
+		this.levels = levels;
+		this.outside = field.getOutside();
+		this.px = new double[scans * Pioneer.SONAR_COUNT];
+		this.py = new double[scans * Pioneer.SONAR_COUNT];
+		Arrays.fill(px, Double.NaN);
+		Arrays.fill(py, Double.NaN);
+		this.next = 0;
+
+		// table k covers windows whose top left cell is in [-(2^k - 1), height) x [-(2^k - 1), width)
+		this.tables = new float[levels + 1][];
+		tables[0] = new float[width * height];
+		for(int i = 0; i < tables[0].length; i++)
+			tables[0][i] = field.get(i);
+		for(int k = 1; k <= levels; k++) {
+			final int s = 1 << (k - 1);
+			final int pad = (1 << k) - 1;
+			final int w = width + pad, h = height + pad;
+			final float[] table = new float[w * h];
+			final int level = k;
+			Parallel.run(0, h, Parallel.grain(w, Parallel.BAND_CELLS), new Parallel.Body() {
+				public void run(final int from, final int to) {
+					for(int j = from; j < to; j++)
+						for(int i = 0, index = j * w; i < w; i++, index++) {
+							final int r = j - pad, c = i - pad;
+							table[index] = Math.max(
+									Math.max(lookup(level - 1, r, c), lookup(level - 1, r, c + s)),
+									Math.max(lookup(level - 1, r + s, c), lookup(level - 1, r + s, c + s)));
+						}
+				}
+			});
+			tables[k] = table;
+		}
+	}
+
+	/**
+	 * Maximum of the field over the window of 2^level cells starting at a cell
+	 * @param level
+	 * @param r
+	 * @param c
+	 * @return
+	 */
+	private float lookup(final int level, final int r, final int c) {
+		final int pad = (1 << level) - 1;
+		if(r < -pad || c < -pad || r >= height || c >= width) return outside;
+		return tables[level][(r + pad) * (width + pad) + (c + pad)];
+	}
+
+	/**
+	 * Add a sonar scan
+	 * @param ranges sonar readings
+	 * @param x odometry
+	 * @param y odometry
+	 * @param yaw odometry
+	 */
+	public void add(final float[] ranges, final double x, final double y, final double yaw) {
+		for(int i = 0; i < Pioneer.SONAR_COUNT; i++) {
+			final int j = next * Pioneer.SONAR_COUNT + i;
+			if(i >= ranges.length || ranges[i] >= Pioneer.SONAR_RANGE) {
+				px[j] = py[j] = Double.NaN;
+				continue;
+			}
+			final double bearing = yaw + Pioneer.SONAR_BEARINGS[i];
+			final double t = Pioneer.SONAR_OFFSETS[i] + ranges[i];
+			px[j] = x + t * Math.cos(bearing);
+			py[j] = y + t * Math.sin(bearing);
+		}
+		next = (next + 1) % (px.length / Pioneer.SONAR_COUNT);
+		ox = x;
+		oy = y;
+	}
+
+	/**
+	 * Refine a transform from odometry to floorplan coordinate, rotations are
+	 * about the last odometry position added
+	 * @param origin current transform, position of the odometry origin in the floorplan
+	 * @param window translation search window (meter)
+	 * @param windowYaw rotation search window (radian)
+	 * @param budget time allowed (millisecond)
+	 * @return refined transform, the origin itself if nothing matches better
+	 */
+	public Position match(final Position origin, final double window, final double windowYaw, final long budget) {
+		deadline = System.nanoTime() + budget * 1000000L;
+
+		// endpoints relative to the robot, and where the robot is in the floorplan
+		int n = 0;
+		for(int j = 0; j < px.length; j++)
+			if(!Double.isNaN(px[j])) n++;
+		if(n == 0) return origin;
+		final double[] qx = new double[n], qy = new double[n];
+		double reach = mpp;
+		for(int j = 0, i = 0; j < px.length; j++) {
+			if(Double.isNaN(px[j])) continue;
+			qx[i] = px[j] - ox;
+			qy[i] = py[j] - oy;
+			reach = Math.max(reach, Utils.elength(qx[i], qy[i]));
+			i++;
+		}
+		final double cos = Math.cos(origin.getYaw()), sin = Math.sin(origin.getYaw());
+		final double wx = cos * ox - sin * oy + origin.getX();
+		final double wy = sin * ox + cos * oy + origin.getY();
+
+		// the farthest endpoint moves by about one cell per rotation step
+		final double step = mpp / reach;
+		final int steps = (int)Math.ceil(windowYaw / step);
+		final int cells = (int)Math.ceil(window / mpp);
+
+		// start from the current transform, only strictly better ones replace it
+		bestYaw = bestRow = bestCol = 0;
+		bestScore = score(0, cells(qx, qy, origin.getYaw(), wx, wy), 0, 0);
+
+		// rotations closest to the current one first, in case the deadline hits
+		Parallel.run(0, 2 * steps + 1, 1, new Parallel.Body() {
+			public void run(final int from, final int to) {
+				for(int j = from; j < to; j++) {
+					final int yaw = (j + 1) / 2 * (j % 2 == 0 ? -1 : 1);
+					final int[] cell = cells(qx, qy, origin.getYaw() + yaw * step, wx, wy);
+					final int size = 1 << levels;
+					for(int dr = -cells; dr <= cells; dr += size)
+						for(int dc = -cells; dc <= cells; dc += size)
+							search(levels, cell, yaw, dr, dc, cells, score(levels, cell, dr, dc));
+				}
+			}
+		});
+
+		if(bestYaw == 0 && bestRow == 0 && bestCol == 0) return origin;
+		final double yaw = origin.getYaw() + bestYaw * step;
+		final double c = Math.cos(yaw), s = Math.sin(yaw);
+		final Position refined = new Position(origin.getName(),
+				wx - (c * ox - s * oy) + bestCol * mpp,
+				wy - (s * ox + c * oy) - bestRow * mpp,
+				Utils.normalize(yaw));
+		refined.setWeight(bestScore / n);
+		return refined;
+	}
+
+	/**
+	 * Floorplan cells of the endpoints for a rotation
+	 * @param qx endpoints relative to the robot
+	 * @param qy endpoints relative to the robot
+	 * @param yaw rotation of the odometry frame in the floorplan
+	 * @param wx robot position in the floorplan
+	 * @param wy robot position in the floorplan
+	 * @return rows and columns, interleaved
+	 */
+	private int[] cells(final double[] qx, final double[] qy, final double yaw, final double wx, final double wy) {
+		final double cos = Math.cos(yaw), sin = Math.sin(yaw);
+		final int[] cell = new int[2 * qx.length];
+		for(int i = 0; i < qx.length; i++) {
+			// floor rather than truncation, so translating by whole cells is exact
+			final double x = wx + cos * qx[i] - sin * qy[i];
+			final double y = wy + sin * qx[i] + cos * qy[i];
+			cell[2 * i] = height - ((int)Math.floor(y / mpp) + height / 2);
+			cell[2 * i + 1] = (int)Math.floor(x / mpp) + width / 2;
+		}
+		return cell;
+	}
+
+	/**
+	 * Sum of the table of a level over the translated endpoints
+	 * @param level
+	 * @param cell
+	 * @param dr
+	 * @param dc
+	 * @return
+	 */
+	private double score(final int level, final int[] cell, final int dr, final int dc) {
+		double score = 0.0;
+		for(int i = 0; i < cell.length; i += 2)
+			score += lookup(level, cell[i] + dr, cell[i + 1] + dc);
+		return score;
+	}
+
+	/**
+	 * Branch and bound over the translations of a block
+	 * @param level the block covers 2^level by 2^level translations
+	 * @param cell
+	 * @param yaw rotation step
+	 * @param dr first translation of the block (row)
+	 * @param dc first translation of the block (column)
+	 * @param cells translation window (cells)
+	 * @param bound score of the block at its level
+	 */
+	private void search(final int level, final int[] cell, final int yaw, final int dr, final int dc, final int cells, final double bound) {
+		if(bound <= bestScore || System.nanoTime() > deadline) return;
+		if(level == 0) {
+			offer(bound, yaw, dr, dc);
+			return;
+		}
+		// most promising sub block first
+		final int s = 1 << (level - 1);
+		final int[] rows = new int[] {dr, dr, dr + s, dr + s};
+		final int[] cols = new int[] {dc, dc + s, dc, dc + s};
+		final double[] bounds = new double[4];
+		for(int i = 0; i < 4; i++)
+			bounds[i] = rows[i] > cells || cols[i] > cells ? Double.NEGATIVE_INFINITY : score(level - 1, cell, rows[i], cols[i]);
+		for(int k = 0; k < 4; k++) {
+			int m = 0;
+			for(int i = 1; i < 4; i++)
+				if(bounds[i] > bounds[m]) m = i;
+			if(bounds[m] == Double.NEGATIVE_INFINITY) break;
+			final double b = bounds[m];
+			bounds[m] = Double.NEGATIVE_INFINITY;
+			search(level - 1, cell, yaw, rows[m], cols[m], cells, b);
+		}
+	}
+
+	/**
+	 * Record a candidate transform
+	 * @param score
+	 * @param yaw
+	 * @param dr
+	 * @param dc
+	 */
+	private synchronized void offer(final double score, final int yaw, final int dr, final int dc) {
+		if(score <= bestScore) return;
+		bestScore = score;
+		bestYaw = yaw;
+		bestRow = dr;
+		bestCol = dc;
+	}
+
+	/**
+	 * Likelihood field the scans are matched against
+	 * @return
+	 */
+	public LikelihoodField getField() {
+		return field;
+	}
+}
@@ -0,0 +1,247 @@
+/**
+ *
+ */
+
+package localization;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free ring buffer of sonar scans from a single producer (the retriever)
+ * to a single consumer (the mapper). Frames are preallocated and the ranges
+ * are copied in, the consumer takes every queued frame at once. When the
+ * buffer is full the new scan is dropped and counted, so losses are visible.
+ * @author ziyan
+ *
+ */
+public class ScanQueue {
+	/**
+	 * Consumer of a batch of scans
+	 * @author ziyan
+	 *
+	 */
+	public interface Handler {
+		/**
+		 * Called once before the scans of a batch
+		 * @param count number of scans in the batch
+		 */
+		public void begin(int count);
+
+		/**
+		 * Called for each scan in order, the ranges are only valid during the call
+		 * @param ranges
+		 * @param x
+		 * @param y
+		 * @param yaw
+		 */
+		public void scan(float[] ranges, double x, double y, double yaw);
+
+		/**
+		 * Called once after the scans of a batch
+		 */
+		public void end();
+	}
+
+	/**
+	 * Slot of the ring buffer
+	 */
+	private static final class Frame {
+		float[] ranges = new float[0];
+		double x, y, yaw;
+		long time;
+	}
+
+	private final Frame[] frames;
+	private final int mask;
+
+	// next frame to write, only advanced by the producer
+	private final AtomicLong tail;
+	// next frame to read, only advanced by the consumer
+	private final AtomicLong head;
+
+	// written by the producer only
+	private volatile long offered, dropped;
+	private volatile int peak;
+
+	// written by the consumer only
+	private volatile long batches, latency, maxLatency, lastLatency;
+
+	/**
+	 * Ring buffer of scans
+	 * @param capacity number of frames, rounded up to a power of two
+	 */
+	public ScanQueue(final int capacity) {
+		if(capacity <= 0) throw new IllegalArgumentException("Capacity must be positive");
+		final int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+		this.frames = new Frame[size];
+		for(int i = 0; i < size; i++)
+			frames[i] = new Frame();
+		this.mask = size - 1;
+		this.tail = new AtomicLong();
+		this.head = new AtomicLong();
+	}
+
+	/**
+	 * Queue a scan, producer thread only
+	 * @param ranges copied into the queue
+	 * @param x
+	 * @param y
+	 * @param yaw
+	 * @return false if the queue is full and the scan was dropped
+	 */
+	public boolean offer(final float[] ranges, final double x, final double y, final double yaw) {
+		final long t = tail.get();
+		offered++;
+		final int depth = (int)(t - head.get());
+		if(depth >= frames.length) {
+			dropped++;
+			return false;
+		}
+		final Frame frame = frames[(int)t & mask];
+		if(frame.ranges.length != ranges.length) frame.ranges = new float[ranges.length];
+		System.arraycopy(ranges, 0, frame.ranges, 0, ranges.length);
+		frame.x = x;
+		frame.y = y;
+		frame.yaw = yaw;
+		frame.time = System.nanoTime();
+		// publishes the frame to the consumer
+		tail.lazySet(t + 1);
+		if(depth + 1 > peak) peak = depth + 1;
+		return true;
+	}
+
+	/**
+	 * Hand every queued scan to a handler as one batch, consumer thread only
+	 * @param handler
+	 * @return number of scans handled
+	 */
+	public int drain(final Handler handler) {
+		final long h = head.get(), t = tail.get();
+		final int count = (int)(t - h);
+		if(count == 0) return 0;
+		final long oldest = frames[(int)h & mask].time;
+		handler.begin(count);
+		for(long i = h; i < t; i++) {
+			final Frame frame = frames[(int)i & mask];
+			handler.scan(frame.ranges, frame.x, frame.y, frame.yaw);
+		}
+		handler.end();
+		// frames can be reused by the producer
+		head.lazySet(t);
+
+		final long elapsed = System.nanoTime() - oldest;
+		batches++;
+		latency += elapsed;
+		lastLatency = elapsed;
+		if(elapsed > maxLatency) maxLatency = elapsed;
+		return count;
+	}
+
+	/**
+	 * Whether no scan is waiting
+	 * @return
+	 */
+	public boolean isEmpty() {
+		return tail.get() == head.get();
+	}
+
+	/**
+	 * Number of scans waiting
+	 * @return
+	 */
+	public int getDepth() {
+		return (int)(tail.get() - head.get());
+	}
+
+	/**
+	 * Largest number of scans that were waiting at once
+	 * @return
+	 */
+	public int getPeakDepth() {
+		return peak;
+	}
+
+	/**
+	 * Start tracking the peak depth again from the current depth, to be
+	 * called from the producer thread, e.g. between measurements
+	 */
+	public void resetPeak() {
+		peak = getDepth();
+	}
+
+	/**
+	 * Capacity of the queue
+	 * @return
+	 */
+	public int getCapacity() {
+		return frames.length;
+	}
+
+	/**
+	 * Number of scans offered so far
+	 * @return
+	 */
+	public long getOffered() {
+		return offered;
+	}
+
+	/**
+	 * Number of scans dropped because the queue was full
+	 * @return
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+
+	/**
+	 * Number of scans handed to the consumer
+	 * @return
+	 */
+	public long getConsumed() {
+		return head.get();
+	}
+
+	/**
+	 * Number of batches handed to the consumer
+	 * @return
+	 */
+	public long getBatches() {
+		return batches;
+	}
+
+	/**
+	 * Time from queuing the oldest scan of the last batch to the end of the batch (nanosecond)
+	 * @return
+	 */
+	public long getLastLatency() {
+		return lastLatency;
+	}
+
+	/**
+	 * Longest batch latency so far (nanosecond)
+	 * @return
+	 */
+	public long getMaxLatency() {
+		return maxLatency;
+	}
+
+	/**
+	 * Average batch latency so far (nanosecond)
+	 * @return
+	 */
+	public long getMeanLatency() {
+		final long n = batches;
+		return n == 0 ? 0 : latency / n;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "offered = " + getOffered() + ", consumed = " + getConsumed() + ", dropped = " + getDropped()
+				+ ", depth = " + getDepth() + ", peak depth = " + getPeakDepth() + ", batches = " + getBatches()
+				+ ", mean latency = " + getMeanLatency() / 1000 + " us, max latency = " + getMaxLatency() / 1000 + " us";
+	}
+}
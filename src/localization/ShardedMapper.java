@@ -0,0 +1,196 @@
+/**
+ *
+ */
+
+package localization;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+import common.GridMap;
+import common.Parallel;
+
+/**
+ * Mapper thread for several sensors (or robots) feeding one map. The tiles
+ * of the map are split between shards and every batch of scans is mapped by
+ * all shards in parallel, each shard only writing the cells of its own
+ * tiles, so no cell is locked. Every cell sees the scans in the order they
+ * were queued, the result is the same as mapping them one after another.
+ * The map must not have a pyramid.
+ * @author ziyan
+ *
+ */
+public class ShardedMapper extends Thread {
+	/**
+	 * Number of scans that can wait for the mapper, per source
+	 */
+	private static final int QUEUE_CAPACITY = 64;
+
+	/**
+	 * Scan waiting in a batch
+	 */
+	private static final class Scan {
+		float[] ranges = new float[0];
+		double x, y, yaw;
+	}
+
+	/**
+	 * A sensor feeding the mapper, to be updated from a single thread
+	 * @author ziyan
+	 *
+	 */
+	public final class Source {
+		private final RangeSensorModel model;
+		private final ScanQueue queue;
+		private final ScanQueue.Handler handler;
+
+		private Source(final RangeSensorModel model) {
+			this.model = model;
+			this.queue = new ScanQueue(QUEUE_CAPACITY);
+			this.handler = new ScanQueue.Handler() {
+				public void begin(final int count) {
+					size = 0;
+				}
+
+				public void scan(final float[] ranges, final double x, final double y, final double yaw) {
+					if(size == batch.size()) batch.add(new Scan());
+					final Scan scan = batch.get(size++);
+					if(scan.ranges.length != ranges.length) scan.ranges = new float[ranges.length];
+					System.arraycopy(ranges, 0, scan.ranges, 0, ranges.length);
+					scan.x = x;
+					scan.y = y;
+					scan.yaw = yaw;
+				}
+
+				public void end() {
+					apply(Source.this.model);
+				}
+			};
+		}
+
+		/**
+		 * Update robot location in local odometry (not the real)
+		 * @param ranges one reading per beam of the sensor model, copied
+		 * @param x
+		 * @param y
+		 * @param yaw
+		 * @return false if the mapper is too far behind and the scan was dropped
+		 */
+		public boolean update(final float[] ranges, final double x, final double y, final double yaw) {
+			final boolean queued = queue.offer(ranges, x, y, yaw);
+			LockSupport.unpark(ShardedMapper.this);
+			return queued;
+		}
+
+		/**
+		 * Sensor model the scans of this source are mapped with
+		 * @return
+		 */
+		public RangeSensorModel getModel() {
+			return model;
+		}
+
+		/**
+		 * Scans waiting for the mapper, with counters of depth, drops and latency
+		 * @return
+		 */
+		public ScanQueue getQueue() {
+			return queue;
+		}
+	}
+
+	private final GridMap map;
+	private final GridMap.Shard[] shards;
+	private final CopyOnWriteArrayList<Source> sources;
+
+	// batch being mapped, only touched by the mapper thread
+	private final List<Scan> batch;
+	private int size;
+
+	private volatile boolean done;
+
+	/**
+	 * Sharded mapper thread
+	 * @param map local map to be updated
+	 * @param workers number of shards mapped in parallel
+	 */
+	public ShardedMapper(final GridMap map, final int workers) {
+		this.map = map;
+		this.shards = map.split(workers);
+		this.sources = new CopyOnWriteArrayList<Source>();
+		this.batch = new ArrayList<Scan>();
+		this.size = 0;
+		this.done = false;
+		this.setPriority(4);
+		this.start();
+	}
+
+	/**
+	 * Add a sensor feeding the map
+	 * @param model sensor model its scans are mapped with
+	 * @return
+	 */
+	public Source addSource(final RangeSensorModel model) {
+		final Source source = new Source(model);
+		sources.add(source);
+		return source;
+	}
+
+	/**
+	 * Number of shards mapped in parallel
+	 * @return
+	 */
+	public int getWorkers() {
+		return shards.length;
+	}
+
+	/**
+	 * Shutdown gracefully
+	 */
+	public void shutdown() {
+		this.done = true;
+		LockSupport.unpark(this);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 */
+	@Override
+	public void run() {
+		while(!done) {
+			int count = 0;
+			for(final Source source : sources)
+				count += source.queue.drain(source.handler);
+			if(count == 0) LockSupport.park(this);
+		}
+		for(final Source source : sources)
+			System.out.println("ShardedMapper: " + source.model.getClass().getSimpleName() + " " + source.queue);
+	}
+
+	/**
+	 * Map the current batch with all shards in parallel as one map update
+	 * @param model
+	 */
+	private void apply(final RangeSensorModel model) {
+		final int n = size;
+		map.beginUpdate();
+		Parallel.run(0, shards.length, 1, new Parallel.Body() {
+			public void run(final int from, final int to) {
+				for(int k = from; k < to; k++) {
+					final GridMap.Shard shard = shards[k];
+					for(int i = 0; i < n; i++) {
+						final Scan scan = batch.get(i);
+						Mapper.map(shard, scan.x, scan.y);
+						model.map(shard, scan.ranges, scan.x, scan.y, scan.yaw);
+					}
+				}
+			}
+		});
+		for(final GridMap.Shard shard : shards)
+			map.merge(shard);
+		map.endUpdate();
+	}
+}
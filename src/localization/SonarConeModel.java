@@ -0,0 +1,52 @@
+/**
+ *
+ */
+
+package localization;
+
+import common.BeamGeometry;
+import common.GridMap;
+import common.MapWriter;
+
+/**
+ * Sonar cone model of the pioneer sonars, see <code>Mapper.model</code>
+ * @author ziyan
+ *
+ */
+public class SonarConeModel implements RangeSensorModel {
+	private final BeamGeometry geometry;
+	private final ConeStencils stencils;
+
+	/**
+	 * Sonar cone model
+	 * @param mpp resolution of the maps to update
+	 */
+	public SonarConeModel(final double mpp) {
+		this(new ConeStencils(mpp));
+	}
+
+	/**
+	 * Sonar cone model
+	 * @param stencils cones built for the resolution of the maps to update, may be shared
+	 */
+	public SonarConeModel(final ConeStencils stencils) {
+		this.geometry = BeamGeometry.sonar();
+		this.stencils = stencils;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see localization.RangeSensorModel#getGeometry()
+	 */
+	public BeamGeometry getGeometry() {
+		return geometry;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see localization.RangeSensorModel#map(common.MapWriter, float[], double, double, double)
+	 */
+	public void map(final MapWriter writer, final float[] ranges, final double x, final double y, final double yaw) {
+		Mapper.map(writer, stencils, ranges, x, y, yaw);
+	}
+}
@@ -4,7 +4,7 @@ import java.util.concurrent.Semaphore;
 
 import javaclient2.Position2DInterface;
 
-import common.Pioneer;
+import common.BeamGeometry;
 import common.Point;
 import common.Utils;
 
@@ -32,6 +32,7 @@ public class PotentialField extends Thread {
 
 	private boolean done;
 	private final Position2DInterface p2d;
+	private final BeamGeometry geometry;
 
 	//controls concurrency
 	private final Semaphore semaphore;
@@ -42,7 +43,18 @@ public class PotentialField extends Thread {
 	 * @param p2d The motor interface for the robot.
 	 */
 	public PotentialField(final Position2DInterface p2d) {
+		this(p2d, BeamGeometry.sonar());
+	}
+
+	/**
+	 * Creates a new PotentialField navigator.
+	 * 
+	 * @param p2d The motor interface for the robot.
+	 * @param geometry The beams the range readings belong to.
+	 */
+	public PotentialField(final Position2DInterface p2d, final BeamGeometry geometry) {
 		this.p2d = p2d;
+		this.geometry = geometry;
 		this.done = false;
 		this.waypoint = null; // null just means random walk
 		this.semaphore = new Semaphore(0);
@@ -86,16 +98,16 @@ public class PotentialField extends Thread {
 			double x = 0.0, y = 0.0, f;
 			int count = 0;
 			boolean close = false;
-			for(int i = 0; i < ranges.length && i < Pioneer.SONAR_COUNT; i++) {
-				if(ranges[i] > Pioneer.SONAR_RANGE) continue;
+			for(int i = 0; i < ranges.length && i < geometry.getCount(); i++) {
+				if(ranges[i] > geometry.getRange()) continue;
 				ranges[i] = Math.abs(ranges[i]) + 0.00001f;
 				//compute the magnitude of the force using an inverse cube and
 				//linear inverse term
 				f = K / (ranges[i] * ranges[i] * ranges[i] * 8.0) + K * 3.0 / ranges[i];
 				//compute the x and y components of this force and update the
 				//overall force acting on the robot
-				x -= f * Math.cos(Pioneer.SONAR_BEARINGS[i]);
-				y -= f * Math.sin(Pioneer.SONAR_BEARINGS[i]);
+				x -= f * Math.cos(geometry.getBearing(i));
+				y -= f * Math.sin(geometry.getBearing(i));
 				count ++;
 				//check if we're about to bang into something
 				if(ranges[i] < CLOSE_DISTANCE)
@@ -108,7 +108,7 @@ public class AStar {
 			this.level = parent.level + 1;
 			if(isValid()) {
 				// potential field to avoid sticking to the wall
-				double p = (double)(GridMap.INTRAVERSABLE - (int)cspace.getData(this.y, this.x)) / (double)(GridMap.INTRAVERSABLE - GridMap.TRAVERSABLE);
+				double p = (double)(GridMap.INTRAVERSABLE - (int)cspace.getData(cspace.getIndex(this.y, this.x))) / (double)(GridMap.INTRAVERSABLE - GridMap.TRAVERSABLE);
 				p = 1.0 / p;
 				this.c = parent.c + p * c;
 				this.h = Utils.elength(this.x - goal.x, this.y - goal.y);
@@ -122,7 +122,7 @@ public class AStar {
 		public boolean isValid() {
 			if(x < 0 || x >= cspace.getWidth()) return false;
 			if(y < 0 || y >= cspace.getHeight()) return false;
-			return cspace.getData(y, x) != GridMap.INTRAVERSABLE;
+			return cspace.getData(cspace.getIndex(y, x)) != GridMap.INTRAVERSABLE;
 		}
 
 		/**
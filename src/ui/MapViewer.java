@@ -14,6 +14,7 @@ import javax.swing.JPanel;
 
 import common.GridMap;
 import common.Point;
+import common.Subscription;
 
 
 /**
@@ -29,6 +30,9 @@ public class MapViewer extends JFrame {
 	private boolean done = false;
 	private MapUpdater updater = null;
 	private final ScrollPane sp;
+	private final Subscription subscription;
+	private Point[] path = null;
+	private int col, row;
 
 	/**
 	 * Heat color map
@@ -54,6 +58,7 @@ public class MapViewer extends JFrame {
 		this.sp = new ScrollPane();
 		this.sp.add(this.mp);
 		this.add(this.sp);
+		this.subscription = map.subscribe();
 		this.update(0, map.getWidth() - 1, 0, map.getHeight() - 1);
 		if(update)
 			this.updater = new MapUpdater();
@@ -85,26 +90,56 @@ public class MapViewer extends JFrame {
 	 * @param bottom
 	 */
 	public void update(final int left, final int right, final int top, final int bottom) {
-		int value;
-		for (int x = left; x <= right; x++)
-			for (int y = top; y <= bottom; y++) {
-				value = (int)map.getData(y, x) - GridMap.TRAVERSABLE;
-				if(map.getData(y, x) == 0)
+		draw(left, right, top, bottom);
+		overlay();
+	}
+
+	/**
+	 * Draw a bounding box of map onto the image
+	 * @param left
+	 * @param right
+	 * @param top
+	 * @param bottom
+	 */
+	private void draw(final int left, final int right, final int top, final int bottom) {
+		byte value;
+		for (int y = Math.max(top, 0); y <= bottom && y < map.getHeight(); y++)
+			for (int x = Math.max(left, 0), i = map.getIndex(y, x); x <= right && x < map.getWidth(); x++, i++) {
+				value = map.getData(i);
+				if(value == 0)
 					image.setRGB(x, y, Color.GRAY.getRGB());
-				else if(map.getData(y, x) == GridMap.TRAVERSABLE)
+				else if(value == GridMap.TRAVERSABLE)
 					image.setRGB(x, y, Color.WHITE.getRGB());
-				else if(map.getData(y, x) == GridMap.INTRAVERSABLE)
+				else if(value == GridMap.INTRAVERSABLE)
 					image.setRGB(x, y, Color.BLACK.getRGB());
 				else
-					image.setRGB(x, y, COLOR_MAP[value].getRGB());
+					image.setRGB(x, y, COLOR_MAP[value - GridMap.TRAVERSABLE].getRGB());
 			}
-		final Point[] path = map.getPath();
+	}
+
+	/**
+	 * Erase the path and robot location painted by the last overlay
+	 */
+	private void erase() {
+		if(path != null)
+			for(final Point p : path)
+				draw(map.getCol(p.x), map.getCol(p.x), map.getRow(p.y), map.getRow(p.y));
+		draw(col - 3, col + 3, row - 3, row + 3);
+	}
+
+	/**
+	 * Paint path and robot location, then repaint
+	 */
+	private void overlay() {
+		path = map.getPath();
 		if(path != null)
 			for(final Point p : path)
 				image.setRGB(map.getCol(p.x), map.getRow(p.y), Color.WHITE.getRGB());
+		col = map.getCol(map.getX());
+		row = map.getRow(map.getY());
 		final Graphics g = image.getGraphics();
 		g.setColor(Color.RED);
-		g.fillOval(map.getCol(map.getX())-3, map.getRow(map.getY())-3, 6, 6);
+		g.fillOval(col-3, row-3, 6, 6);
 		mp.invalidate();
 		mp.repaint();
 		this.repaint();
@@ -155,9 +190,17 @@ public class MapViewer extends JFrame {
 		 */
 		@Override
 		public void run() {
+			final int[] tiles = new int[map.getTileCount()];
+			int count;
 			try {
 				while(!done) {
-					update(map.getLeft(), map.getRight(), map.getTop(), map.getBottom());
+					// only redraw what changed since the last update
+					count = subscription.drain(tiles);
+					for(int i = 0; i < count; i++)
+						draw(map.getTileLeft(tiles[i]), map.getTileRight(tiles[i]),
+								map.getTileTop(tiles[i]), map.getTileBottom(tiles[i]));
+					erase();
+					overlay();
 					Thread.sleep(500);
 				}
 			} catch(final InterruptedException e) { }